@@ -0,0 +1,127 @@
+package ch.eugster.swissqrbill.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import net.codecrete.qrbill.generator.Address;
+import net.codecrete.qrbill.generator.Bill;
+import net.codecrete.qrbill.generator.BillFormat;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+import net.codecrete.qrbill.generator.Language;
+import net.codecrete.qrbill.generator.OutputSize;
+
+/*
+ * The request, bill and invoice all benchmarks work with. They correspond
+ * to what the tests use.
+ */
+public final class BenchmarkData
+{
+	private BenchmarkData()
+	{
+	}
+
+	public static ObjectNode request(ObjectMapper mapper, String output, GraphicsFormat graphicsFormat)
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", output);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.A4_PORTRAIT_SHEET.name());
+		form.put("graphics_format", graphicsFormat.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", 123456);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		ObjectNode debtor = node.putObject("debtor");
+		debtor.put("name", "Pia-Maria Rutschmann-Schnyder");
+		debtor.put("address", "Grosse Marktgasse 28");
+		debtor.put("city", "9400 Rorschach");
+		debtor.put("country", "CH");
+		return node;
+	}
+
+	/*
+	 * The bill SwissQRBillGenerator builds from request(...).
+	 */
+	public static Bill bill(GraphicsFormat graphicsFormat, OutputSize outputSize)
+	{
+		Bill bill = new Bill();
+		BillFormat format = new BillFormat();
+		format.setLanguage(Language.DE);
+		format.setFontFamily("Arial");
+		format.setGraphicsFormat(graphicsFormat);
+		format.setOutputSize(outputSize);
+		bill.setFormat(format);
+		bill.setAmountFromDouble(Double.valueOf(199.95));
+		bill.setCurrency("CHF");
+		bill.setAccount("CH4431999123000889012");
+		bill.createAndSetQRReference("123451234567");
+		Address creditor = new Address();
+		creditor.setName("Robert Schneider AG");
+		creditor.setAddressLine1("Rue du Lac 1268/2/22");
+		creditor.setAddressLine2("2501 Biel");
+		creditor.setCountryCode("CH");
+		bill.setCreditor(creditor);
+		bill.setUnstructuredMessage("Abonnement für 2020");
+		Address debtor = new Address();
+		debtor.setName("Pia-Maria Rutschmann-Schnyder");
+		debtor.setAddressLine1("Grosse Marktgasse 28");
+		debtor.setAddressLine2("9400 Rorschach");
+		debtor.setCountryCode("CH");
+		bill.setDebtor(debtor);
+		return bill;
+	}
+
+	/*
+	 * A one page A4 invoice with some text, to append bills to.
+	 */
+	public static byte[] invoice() throws IOException
+	{
+		PDDocument document = new PDDocument();
+		try
+		{
+			PDPage page = new PDPage(PDRectangle.A4);
+			document.addPage(page);
+			PDPageContentStream contentStream = new PDPageContentStream(document, page);
+			try
+			{
+				contentStream.setFont(PDType1Font.HELVETICA, 12);
+				for (int line = 0; line < 20; line++)
+				{
+					contentStream.beginText();
+					contentStream.newLineAtOffset(50, 780 - line * 16);
+					contentStream.showText("Position " + line + "  Abonnement für 2020  CHF 9.95");
+					contentStream.endText();
+				}
+			}
+			finally
+			{
+				contentStream.close();
+			}
+			ByteArrayOutputStream os = new ByteArrayOutputStream();
+			document.save(os);
+			return os.toByteArray();
+		}
+		finally
+		{
+			document.close();
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package ch.eugster.swissqrbill.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.eugster.swissqrbill.SwissQRBillGenerator;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+
+/*
+ * The end to end call of SwissQRBillGenerator.generate, from the json
+ * request to the json response, with one generator shared by all threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GenerateBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Generator
+	{
+		SwissQRBillGenerator generator;
+
+		@Setup
+		public void setup()
+		{
+			this.generator = new SwissQRBillGenerator();
+		}
+	}
+
+	/*
+	 * Every thread writes to its own file.
+	 */
+	@State(Scope.Thread)
+	public static class Request
+	{
+		@Param({ "PDF", "SVG", "PNG" })
+		GraphicsFormat graphicsFormat;
+
+		File output;
+
+		String json;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException
+		{
+			this.output = File.createTempFile("QRBill", "." + this.graphicsFormat.name().toLowerCase());
+			this.json = BenchmarkData.request(new ObjectMapper(), this.output.getAbsolutePath(), this.graphicsFormat).toString();
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown()
+		{
+			this.output.delete();
+		}
+	}
+
+	@Benchmark
+	@Threads(1)
+	public String generateSingleThreaded(Generator generator, Request request)
+	{
+		return generator.generator.generate(request.json);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public String generateMultiThreaded(Generator generator, Request request)
+	{
+		return generator.generator.generate(request.json);
+	}
+}
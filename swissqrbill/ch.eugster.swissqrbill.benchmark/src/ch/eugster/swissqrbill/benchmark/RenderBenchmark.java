@@ -0,0 +1,53 @@
+package ch.eugster.swissqrbill.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.codecrete.qrbill.generator.Bill;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+import net.codecrete.qrbill.generator.OutputSize;
+import net.codecrete.qrbill.generator.QRBill;
+
+/*
+ * Rendering of a standalone bill with QRBill.generate per graphics format
+ * and output size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark
+{
+	@Param({ "PDF", "SVG", "PNG" })
+	private GraphicsFormat graphicsFormat;
+
+	@Param({ "A4_PORTRAIT_SHEET", "QR_BILL_ONLY" })
+	private OutputSize outputSize;
+
+	private Bill bill;
+
+	@Setup
+	public void setup()
+	{
+		this.bill = BenchmarkData.bill(this.graphicsFormat, this.outputSize);
+	}
+
+	@Benchmark
+	public byte[] render()
+	{
+		return QRBill.generate(this.bill);
+	}
+}
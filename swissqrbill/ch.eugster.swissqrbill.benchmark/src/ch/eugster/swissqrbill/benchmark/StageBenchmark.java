@@ -0,0 +1,127 @@
+package ch.eugster.swissqrbill.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.nayuki.qrcodegen.QrCode;
+import net.codecrete.qrbill.canvas.PDFCanvas;
+import net.codecrete.qrbill.generator.Bill;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+import net.codecrete.qrbill.generator.OutputSize;
+import net.codecrete.qrbill.generator.QRBill;
+import net.codecrete.qrbill.generator.ValidationResult;
+
+/*
+ * The stages of SwissQRBillGenerator.generate, each on its own. Run with
+ * -prof gc to get the allocation rate per stage.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StageBenchmark
+{
+	private ObjectMapper mapper;
+
+	private String json;
+
+	private Bill bill;
+
+	private Bill appendedBill;
+
+	private String qrCodeText;
+
+	private byte[] invoice;
+
+	private ObjectNode response;
+
+	@Setup
+	public void setup() throws IOException
+	{
+		this.mapper = new ObjectMapper();
+		this.json = BenchmarkData.request(this.mapper, "QRBill.pdf", GraphicsFormat.PDF).toString();
+		this.bill = BenchmarkData.bill(GraphicsFormat.PDF, OutputSize.A4_PORTRAIT_SHEET);
+		this.appendedBill = BenchmarkData.bill(GraphicsFormat.PDF, OutputSize.QR_BILL_EXTRA_SPACE);
+		this.qrCodeText = QRBill.encodeQrCodeText(this.bill);
+		this.invoice = BenchmarkData.invoice();
+		this.response = this.mapper.createObjectNode();
+		this.response.put("result", "OK");
+		this.response.setAll((ObjectNode) this.mapper.readTree(this.json));
+		ObjectNode file = this.response.putObject("file");
+		file.put("qrbill", QRBill.generate(this.bill));
+		file.put("name", "QRBill_123456.pdf");
+	}
+
+	/*
+	 * What checkParameter does with the request.
+	 */
+	@Benchmark
+	public JsonNode parseRequest() throws JsonProcessingException
+	{
+		return this.mapper.readTree(this.json);
+	}
+
+	@Benchmark
+	public ValidationResult validate()
+	{
+		return QRBill.validate(this.bill);
+	}
+
+	@Benchmark
+	public String buildQrCodeText()
+	{
+		return QRBill.encodeQrCodeText(this.bill);
+	}
+
+	/*
+	 * The QR code encoding QRBill does for every bill it draws.
+	 */
+	@Benchmark
+	public QrCode encodeQrCode()
+	{
+		return QrCode.encodeText(this.qrCodeText, QrCode.Ecc.MEDIUM);
+	}
+
+	@Benchmark
+	public byte[] appendToInvoice() throws IOException
+	{
+		PDFCanvas canvas = new PDFCanvas(this.invoice, PDFCanvas.LAST_PAGE);
+		try
+		{
+			QRBill.draw(this.appendedBill, canvas);
+			return canvas.toByteArray();
+		}
+		finally
+		{
+			canvas.close();
+		}
+	}
+
+	/*
+	 * The response of a successful request including the base64 encoded
+	 * document.
+	 */
+	@Benchmark
+	public String serializeResponse()
+	{
+		return this.response.toString();
+	}
+}
@@ -0,0 +1,60 @@
+package ch.eugster.swissqrbill.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Bounds the requests in the server: 'admitted' counts the requests being
+ * generated and waiting, 'running' the requests being generated. A request
+ * that finds no admission permit is rejected without waiting.
+ */
+final class Admission
+{
+	private final Semaphore admitted;
+
+	private final Semaphore running;
+
+	private final AtomicLong rejected = new AtomicLong();
+
+	Admission(int concurrency, int queueSize)
+	{
+		this.admitted = new Semaphore(concurrency + queueSize);
+		this.running = new Semaphore(concurrency, true);
+	}
+
+	/*
+	 * Returns false if the queue is full. Every true must be followed by
+	 * leave().
+	 */
+	boolean enter()
+	{
+		if (this.admitted.tryAcquire())
+		{
+			return true;
+		}
+		this.rejected.incrementAndGet();
+		return false;
+	}
+
+	/*
+	 * Waits for a turn to generate, in the order of arrival.
+	 */
+	void run() throws InterruptedException
+	{
+		this.running.acquire();
+	}
+
+	void leave(boolean ran)
+	{
+		if (ran)
+		{
+			this.running.release();
+		}
+		this.admitted.release();
+	}
+
+	long getRejected()
+	{
+		return this.rejected.get();
+	}
+}
@@ -0,0 +1,246 @@
+package ch.eugster.swissqrbill.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import ch.eugster.swissqrbill.SwissQRBillGenerator;
+
+/*
+ * Passes the body of a request to the generator method given by the path
+ * and returns its json result. The result of the generator (OK or ERROR)
+ * is answered with 200; the other status codes are for requests that did
+ * not reach the generator.
+ */
+final class GenerateHandler implements HttpHandler
+{
+	private static final String JSON = "application/json; charset=utf-8";
+
+	private final SwissQRBillGenerator generator;
+
+	private final Admission admission;
+
+	private final int retryAfter;
+
+	private final int maxRequestSize;
+
+	GenerateHandler(SwissQRBillGenerator generator, Admission admission, int retryAfter, int maxRequestSize)
+	{
+		this.generator = generator;
+		this.admission = admission;
+		this.retryAfter = retryAfter;
+		this.maxRequestSize = maxRequestSize;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException
+	{
+		try
+		{
+			String path = exchange.getRequestURI().getPath();
+			if (path.equals("/health"))
+			{
+				this.send(exchange, 200, "{\"result\":\"OK\"}");
+			}
+			else if (!path.equals("/generate") && !path.equals("/batch") && !path.equals("/printrun"))
+			{
+				this.sendError(exchange, 404, "Der Pfad '" + path + "' ist unbekannt.");
+			}
+			else if (!exchange.getRequestMethod().equals("POST"))
+			{
+				exchange.getResponseHeaders().set("Allow", "POST");
+				this.sendError(exchange, 405, "Die Anfrage muss mit POST gesendet werden.");
+			}
+			else if (!this.admission.enter())
+			{
+				exchange.getResponseHeaders().set("Retry-After", String.valueOf(this.retryAfter));
+				this.sendError(exchange, 503, "Der Server ist ausgelastet, die Anfrage kann später wiederholt werden.");
+			}
+			else
+			{
+				this.generate(exchange, path);
+			}
+		}
+		finally
+		{
+			exchange.close();
+		}
+	}
+
+	private void generate(HttpExchange exchange, String path) throws IOException
+	{
+		boolean ran = false;
+		try
+		{
+			Long contentLength = contentLength(exchange);
+			if (Objects.isNull(contentLength))
+			{
+				this.sendError(exchange, 400, "Die Länge der Anfrage (Content-Length) ist ungültig.");
+				return;
+			}
+			String json = this.readBody(exchange, contentLength.longValue());
+			if (Objects.isNull(json))
+			{
+				this.sendError(exchange, 413, "Die Anfrage ist grösser als " + this.maxRequestSize + " Bytes.");
+				return;
+			}
+			this.admission.run();
+			ran = true;
+			switch (path)
+			{
+				case "/batch":
+					this.send(exchange, 200, this.generator.generateBatch(json));
+					break;
+				case "/printrun":
+					this.send(exchange, 200, this.generator.generatePrintRun(json));
+					break;
+				default:
+					/*
+					 * The result holds the document, it is streamed without
+					 * building it as a string first.
+					 */
+					ResponseStream os = new ResponseStream(exchange);
+					this.generator.generateTo(json, os);
+					os.close();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			this.sendError(exchange, 503, "Der Server wird beendet.");
+		}
+		catch (RuntimeException e)
+		{
+			this.sendError(exchange, 500, "Bei der Verarbeitung ist ein unerwarteter Fehler aufgetreten (" + e.getLocalizedMessage() + ").");
+		}
+		finally
+		{
+			this.admission.leave(ran);
+		}
+	}
+
+	/*
+	 * The length given in the header, -1 if there is none, null if it is
+	 * not a valid length.
+	 */
+	private static Long contentLength(HttpExchange exchange)
+	{
+		String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (Objects.isNull(contentLength))
+		{
+			return Long.valueOf(-1L);
+		}
+		try
+		{
+			long length = Long.parseLong(contentLength.trim());
+			return length < 0L ? null : Long.valueOf(length);
+		}
+		catch (NumberFormatException e)
+		{
+			return null;
+		}
+	}
+
+	/*
+	 * Returns null if the body is larger than maxRequestSize.
+	 */
+	private String readBody(HttpExchange exchange, long contentLength) throws IOException
+	{
+		if (contentLength > this.maxRequestSize)
+		{
+			return null;
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream(contentLength < 0L ? 8192 : (int) Math.min(contentLength, this.maxRequestSize));
+		byte[] buffer = new byte[8192];
+		try (InputStream is = exchange.getRequestBody())
+		{
+			int read = 0;
+			while ((read = is.read(buffer)) != -1)
+			{
+				if (body.size() + read > this.maxRequestSize)
+				{
+					return null;
+				}
+				body.write(buffer, 0, read);
+			}
+		}
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private void sendError(HttpExchange exchange, int status, String message) throws IOException
+	{
+		this.send(exchange, status, "{\"errors\":[{\"Server\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}],\"result\":\"ERROR\"}");
+	}
+
+	private void send(HttpExchange exchange, int status, String json) throws IOException
+	{
+		byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", JSON);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream os = exchange.getResponseBody())
+		{
+			os.write(bytes);
+		}
+	}
+
+	/*
+	 * Sends the headers (chunked) with the first byte written, so a request
+	 * the generator fails with before writing can still be answered with
+	 * 500.
+	 */
+	private static final class ResponseStream extends OutputStream
+	{
+		private final HttpExchange exchange;
+
+		private OutputStream os = null;
+
+		private ResponseStream(HttpExchange exchange)
+		{
+			this.exchange = exchange;
+		}
+
+		private OutputStream open() throws IOException
+		{
+			if (Objects.isNull(this.os))
+			{
+				this.exchange.getResponseHeaders().set("Content-Type", JSON);
+				this.exchange.sendResponseHeaders(200, 0);
+				this.os = this.exchange.getResponseBody();
+			}
+			return this.os;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.open().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			this.open().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			if (!Objects.isNull(this.os))
+			{
+				this.os.flush();
+			}
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			this.open().close();
+		}
+	}
+}
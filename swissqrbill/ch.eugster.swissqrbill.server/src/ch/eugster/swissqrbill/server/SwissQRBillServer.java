@@ -0,0 +1,258 @@
+package ch.eugster.swissqrbill.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpServer;
+
+import ch.eugster.swissqrbill.SwissQRBillGenerator;
+
+/*
+ * Exposes a SwissQRBillGenerator over http with the HttpServer of the jdk,
+ * so several systems can share one warm generator instead of embedding the
+ * library each. The json requests and responses are the same as those of
+ * the library:
+ *
+ * POST /generate  generate(String)
+ * POST /batch     generateBatch(String)
+ * POST /printrun  generatePrintRun(String)
+ * GET  /health    {"result":"OK"}
+ *
+ * Each request runs on a virtual thread (on Java 21 and later, else on a
+ * pooled platform thread). At most 'concurrency' requests are generated at
+ * the same time and at most 'queueSize' more wait for their turn; any
+ * request beyond is rejected at once with 503 and Retry-After, so a burst
+ * does not pile up requests and memory.
+ */
+public class SwissQRBillServer
+{
+	private final HttpServer server;
+
+	private final ExecutorService executor;
+
+	private final Admission admission;
+
+	private SwissQRBillServer(Builder builder) throws IOException
+	{
+		this.admission = new Admission(builder.concurrency, builder.queueSize);
+		this.executor = newExecutor();
+		this.server = HttpServer.create(new InetSocketAddress(builder.host, builder.port), builder.backlog);
+		GenerateHandler handler = new GenerateHandler(builder.generator, this.admission, builder.retryAfter, builder.maxRequestSize);
+		this.server.createContext("/generate", handler);
+		this.server.createContext("/batch", handler);
+		this.server.createContext("/printrun", handler);
+		this.server.createContext("/health", handler);
+		this.server.setExecutor(this.executor);
+	}
+
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+
+	public void start()
+	{
+		this.server.start();
+	}
+
+	/*
+	 * Stops accepting requests and waits at most delay seconds for the
+	 * running ones to finish.
+	 */
+	public void stop(int delay)
+	{
+		this.server.stop(delay);
+		this.executor.shutdown();
+		try
+		{
+			this.executor.awaitTermination(delay, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/*
+	 * The address the server is bound to, e.g. to find the port chosen for
+	 * port 0.
+	 */
+	public InetSocketAddress getAddress()
+	{
+		return this.server.getAddress();
+	}
+
+	/*
+	 * The number of requests rejected with 503 since the start.
+	 */
+	public long getRejected()
+	{
+		return this.admission.getRejected();
+	}
+
+	/*
+	 * One virtual thread per request where available (Java 21 and later).
+	 * The library is built for Java 8, so the factory is looked up by
+	 * reflection and a cached pool of daemon threads is used instead if it
+	 * is missing; the admission bounds the number of threads either way.
+	 */
+	private static ExecutorService newExecutor()
+	{
+		try
+		{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return Executors.newCachedThreadPool(runnable ->
+			{
+				Thread thread = new Thread(runnable, "swissqrbill-server");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/*
+	 * Starts a server with the default settings. The port defaults to 8080
+	 * and may be given as first argument.
+	 */
+	public static void main(String[] args) throws IOException
+	{
+		SwissQRBillGenerator.warmUp();
+		SwissQRBillServer server = SwissQRBillServer.builder().port(args.length > 0 ? Integer.parseInt(args[0]) : 8080).build();
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(5)));
+		server.start();
+		System.out.println("SwissQRBillServer listening on " + server.getAddress());
+	}
+
+	public static class Builder
+	{
+		private SwissQRBillGenerator generator = new SwissQRBillGenerator();
+
+		private String host = "localhost";
+
+		private int port = 8080;
+
+		private int backlog = 0;
+
+		private int concurrency = Runtime.getRuntime().availableProcessors();
+
+		private int queueSize = 4 * Runtime.getRuntime().availableProcessors();
+
+		private int retryAfter = 1;
+
+		private int maxRequestSize = 16 * 1024 * 1024;
+
+		private Builder()
+		{
+		}
+
+		public Builder generator(SwissQRBillGenerator generator)
+		{
+			this.generator = Objects.requireNonNull(generator);
+			return this;
+		}
+
+		/*
+		 * The host name or address to bind to, defaults to localhost.
+		 */
+		public Builder host(String host)
+		{
+			this.host = Objects.requireNonNull(host);
+			return this;
+		}
+
+		/*
+		 * The port to listen on, defaults to 8080; 0 chooses a free port.
+		 */
+		public Builder port(int port)
+		{
+			if (port < 0 || port > 65535)
+			{
+				throw new IllegalArgumentException("port must be between 0 and 65535");
+			}
+			this.port = port;
+			return this;
+		}
+
+		/*
+		 * The connections the operating system queues before they are
+		 * accepted, 0 takes the system default.
+		 */
+		public Builder backlog(int backlog)
+		{
+			if (backlog < 0)
+			{
+				throw new IllegalArgumentException("backlog must not be negative");
+			}
+			this.backlog = backlog;
+			return this;
+		}
+
+		/*
+		 * The number of requests generated at the same time, defaults to the
+		 * number of processors as generating is cpu bound.
+		 */
+		public Builder concurrency(int concurrency)
+		{
+			if (concurrency < 1)
+			{
+				throw new IllegalArgumentException("concurrency must be at least 1");
+			}
+			this.concurrency = concurrency;
+			return this;
+		}
+
+		/*
+		 * The number of requests waiting for their turn before further
+		 * requests are rejected, defaults to four times the number of
+		 * processors.
+		 */
+		public Builder queueSize(int queueSize)
+		{
+			if (queueSize < 0)
+			{
+				throw new IllegalArgumentException("queueSize must not be negative");
+			}
+			this.queueSize = queueSize;
+			return this;
+		}
+
+		/*
+		 * The seconds sent in Retry-After with a 503, defaults to 1.
+		 */
+		public Builder retryAfter(int retryAfter)
+		{
+			if (retryAfter < 0)
+			{
+				throw new IllegalArgumentException("retryAfter must not be negative");
+			}
+			this.retryAfter = retryAfter;
+			return this;
+		}
+
+		/*
+		 * The maximum size of a request body in bytes, larger requests are
+		 * rejected with 413. Defaults to 16 MB.
+		 */
+		public Builder maxRequestSize(int maxRequestSize)
+		{
+			if (maxRequestSize < 1)
+			{
+				throw new IllegalArgumentException("maxRequestSize must be at least 1");
+			}
+			this.maxRequestSize = maxRequestSize;
+			return this;
+		}
+
+		public SwissQRBillServer build() throws IOException
+		{
+			return new SwissQRBillServer(this);
+		}
+	}
+}
@@ -1,17 +1,43 @@
 package ch.eugster.swissqrbill.test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.management.JMException;
+import javax.management.MBeanServer;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -22,13 +48,17 @@ import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.text.PDFTextStripper;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import ch.eugster.swissqrbill.JmxMetrics;
 import ch.eugster.swissqrbill.SwissQRBillGenerator;
 import net.codecrete.qrbill.generator.GraphicsFormat;
 import net.codecrete.qrbill.generator.Language;
+import net.codecrete.qrbill.generator.MultilingualText;
 import net.codecrete.qrbill.generator.OutputSize;
 
 public class QRCodeTest 
@@ -973,4 +1003,1026 @@ public class QRCodeTest
 		JsonNode targetNode = this.mapper.readTree(result);
 		assertEquals("OK", targetNode.get("result").asText());	
 	}
+	
+	@Test
+	public void testSharedGeneratorFromManyThreads() throws InterruptedException, ExecutionException, IOException
+	{
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		ExecutorService executor = Executors.newFixedThreadPool(32);
+		List<Future<String>> results = new ArrayList<Future<String>>();
+		for (int i = 0; i < 128; i++)
+		{
+			ObjectNode node = mapper.createObjectNode();
+			ObjectNode path = node.putObject("path");
+			path.put("output", System.getProperty("java.io.tmpdir") + File.separator + "QRBill_" + i + ".pdf");
+			ObjectNode form = node.putObject("form");
+			form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+			form.put("graphics_format", GraphicsFormat.PDF.name());
+			form.put("language", Language.DE.name());
+			node.put("iban", "CH4431999123000889012");
+			node.put("amount", 199.95);
+			node.put("currency", "CHF");
+			node.put("invoice", i);
+			node.put("reference", "123451234567");
+			ObjectNode creditor = node.putObject("creditor");
+			creditor.put("name", "Robert Schneider AG");
+			creditor.put("address", "Rue du Lac 1268/2/22");
+			creditor.put("city", "2501 Biel");
+			creditor.put("country", "CH");
+			node.put("message", "Abonnement für 2020");
+			final String json = node.toString();
+			results.add(executor.submit(() -> generator.generate(json)));
+		}
+		executor.shutdown();
+		for (int i = 0; i < results.size(); i++)
+		{
+			JsonNode targetNode = this.mapper.readTree(results.get(i).get());
+			assertEquals("OK", targetNode.get("result").asText());
+			assertEquals(String.valueOf(i), targetNode.get("invoice").asText());
+			assertNull(targetNode.get("errors"));
+			new File(System.getProperty("java.io.tmpdir") + File.separator + "QRBill_" + i + ".pdf").delete();
+		}
+	}
+	
+	@Test
+	public void testGenerateBatchKeepsItemsIndependent() throws JsonMappingException, JsonProcessingException
+	{
+		ArrayNode items = mapper.createArrayNode();
+		for (int i = 0; i < 3; i++)
+		{
+			ObjectNode node = items.addObject();
+			ObjectNode path = node.putObject("path");
+			path.put("output", System.getProperty("java.io.tmpdir") + File.separator + "QRBill_" + i + ".pdf");
+			ObjectNode form = node.putObject("form");
+			form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+			form.put("graphics_format", GraphicsFormat.PDF.name());
+			form.put("language", Language.DE.name());
+			node.put("iban", i == 1 ? "" : "CH4431999123000889012");
+			node.put("amount", 199.95);
+			node.put("currency", "CHF");
+			node.put("invoice", i);
+			node.put("reference", "123451234567");
+			ObjectNode creditor = node.putObject("creditor");
+			creditor.put("name", "Robert Schneider AG");
+			creditor.put("address", "Rue du Lac 1268/2/22");
+			creditor.put("city", "2501 Biel");
+			creditor.put("country", "CH");
+			node.put("message", "Abonnement für 2020");
+		}
+		items.addObject().put("invoice", 3);
+		String result = new SwissQRBillGenerator().generateBatch(items.toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertTrue(targetNode.isArray());
+		assertEquals(4, targetNode.size());
+		assertEquals("OK", targetNode.get(0).get("result").asText());
+		assertEquals("ERROR", targetNode.get(1).get("result").asText());
+		assertEquals("'iban' muss die IBAN oder QR-IBAN des Rechnungstellers enthalten.", targetNode.get(1).get("errors").get(0).get("1").asText());
+		assertEquals("OK", targetNode.get(2).get("result").asText());
+		assertEquals("ERROR", targetNode.get(3).get("result").asText());
+		for (int i = 0; i < 3; i++)
+		{
+			new File(System.getProperty("java.io.tmpdir") + File.separator + "QRBill_" + i + ".pdf").delete();
+		}
+	}
+	
+	@Test
+	public void testGenerateBatchWithoutArray() throws JsonMappingException, JsonProcessingException
+	{
+		String result = new SwissQRBillGenerator().generateBatch(mapper.createObjectNode().put("invoice", iid).toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertEquals(1, targetNode.get("errors").size());
+	}
+	
+	@Test
+	public void testGenerateStream() throws IOException
+	{
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 5; i++)
+		{
+			ObjectNode node = mapper.createObjectNode();
+			ObjectNode path = node.putObject("path");
+			path.put("output", System.getProperty("java.io.tmpdir") + File.separator + "QRBill_" + i + ".svg");
+			ObjectNode form = node.putObject("form");
+			form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+			form.put("graphics_format", GraphicsFormat.SVG.name());
+			form.put("language", Language.DE.name());
+			node.put("iban", i == 3 ? "" : "CH4431999123000889012");
+			node.put("currency", "CHF");
+			node.put("invoice", i);
+			node.put("reference", "123451234567");
+			ObjectNode creditor = node.putObject("creditor");
+			creditor.put("name", "Robert Schneider AG");
+			creditor.put("address", "Rue du Lac 1268/2/22");
+			creditor.put("city", "2501 Biel");
+			creditor.put("country", "CH");
+			node.put("message", "Abonnement für 2020");
+			lines.append(node.toString()).append("\n\n");
+		}
+		lines.append("no json\n");
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		SwissQRBillGenerator generator = SwissQRBillGenerator.builder().streamWindow(2).build();
+		long count = generator.generateStream(new ByteArrayInputStream(lines.toString().getBytes(StandardCharsets.UTF_8)), os);
+		assertEquals(6, count);
+		String[] results = new String(os.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		assertEquals(6, results.length);
+		for (int i = 0; i < 5; i++)
+		{
+			JsonNode targetNode = this.mapper.readTree(results[i]);
+			assertEquals(String.valueOf(i), targetNode.get("invoice").asText());
+			assertEquals(i == 3 ? "ERROR" : "OK", targetNode.get("result").asText());
+			new File(System.getProperty("java.io.tmpdir") + File.separator + "QRBill_" + i + ".svg").delete();
+		}
+		assertEquals("ERROR", this.mapper.readTree(results[5]).get("result").asText());
+	}
+	
+	@Test
+	public void testWithoutPayload() throws IOException, NoSuchAlgorithmException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		ObjectNode options = node.putObject("options");
+		options.put("payload", false);
+		options.put("hash", "SHA-256");
+		String result = new SwissQRBillGenerator().generate(node.toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("OK", targetNode.get("result").asText());
+		JsonNode targetFileNode = targetNode.get("file");
+		assertNull(targetFileNode.get("qrbill"));
+		assertEquals("QRBill_" + String.valueOf(this.iid) + "." + GraphicsFormat.PDF.name().toLowerCase(), targetFileNode.get("name").asText());
+		File file = new File(targetFileNode.get("path").asText());
+		assertTrue(file.isFile());
+		assertEquals(file.length(), targetFileNode.get("size").asLong());
+		byte[] digest = MessageDigest.getInstance("SHA-256").digest(FileUtils.readFileToByteArray(file));
+		assertEquals(64, targetFileNode.get("hash").asText().length());
+		assertEquals(new BigInteger(1, digest), new BigInteger(targetFileNode.get("hash").asText(), 16));
+	}
+	
+	@Test
+	public void testWithUnknownHashAlgorithm() throws JsonMappingException, JsonProcessingException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		node.putObject("options").put("hash", "CRC-0");
+		String result = new SwissQRBillGenerator().generate(node.toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertNotNull(targetNode.get("errors").get(0).get("options.hash"));
+	}
+	
+	@Test
+	public void testGenerateToStream() throws IOException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		String result = new SwissQRBillGenerator().generate(node, os);
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("OK", targetNode.get("result").asText());
+		assertNull(targetNode.get("file").get("qrbill"));
+		assertEquals(os.size(), targetNode.get("file").get("size").asInt());
+		assertEquals("%PDF", new String(os.toByteArray(), 0, 4, StandardCharsets.US_ASCII));
+	}
+	
+	@Test
+	public void testAppendFileBacked() throws IOException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		path.put("invoice", this.invoice);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_EXTRA_SPACE.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		ObjectNode options = node.putObject("options");
+		options.put("payload", false);
+		options.put("append_mode", "FILE");
+		String result = new SwissQRBillGenerator().generate(node.toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("OK", targetNode.get("result").asText());
+		JsonNode targetFileNode = targetNode.get("file");
+		assertNull(targetFileNode.get("qrbill"));
+		File file = new File(targetFileNode.get("path").asText());
+		assertTrue(file.isFile());
+		assertEquals(file.length(), targetFileNode.get("size").asLong());
+		PDDocument document = PDDocument.load(file);
+		try
+		{
+			assertEquals(1, document.getNumberOfPages());
+		}
+		finally
+		{
+			document.close();
+		}
+	}
+	
+	@Test
+	public void testWithUnknownAppendMode() throws JsonMappingException, JsonProcessingException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		path.put("invoice", this.invoice);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_EXTRA_SPACE.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		node.putObject("options").put("append_mode", "DISK");
+		String result = new SwissQRBillGenerator().generate(node.toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertEquals("'append_mode' muss eines der folgenden Werte sein: MEMORY, FILE, INCREMENTAL", targetNode.get("errors").get(0).get("options.append_mode").asText());
+	}
+	
+	@Test
+	public void testGeneratePrintRun() throws IOException
+	{
+		ObjectNode run = mapper.createObjectNode();
+		run.putObject("path").put("output", this.output);
+		run.putObject("options").put("payload", false);
+		ArrayNode bills = run.putArray("bills");
+		for (int i = 0; i < 3; i++)
+		{
+			ObjectNode node = bills.addObject();
+			ObjectNode form = node.putObject("form");
+			form.put("output_size", OutputSize.A4_PORTRAIT_SHEET.name());
+			form.put("graphics_format", GraphicsFormat.PDF.name());
+			form.put("language", Language.DE.name());
+			node.put("iban", "CH4431999123000889012");
+			node.put("amount", 199.95 + i);
+			node.put("currency", "CHF");
+			node.put("invoice", i);
+			node.put("reference", "123451234567");
+			ObjectNode creditor = node.putObject("creditor");
+			creditor.put("name", "Robert Schneider AG");
+			creditor.put("address", "Rue du Lac 1268/2/22");
+			creditor.put("city", "2501 Biel");
+			creditor.put("country", "CH");
+			node.put("message", "Abonnement für 2020");
+		}
+		String result = new SwissQRBillGenerator().generatePrintRun(run.toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("OK", targetNode.get("result").asText());
+		assertEquals(3, targetNode.get("bills").size());
+		assertEquals("OK", targetNode.get("bills").get(2).get("result").asText());
+		assertEquals(3, targetNode.get("file").get("pages").asInt());
+		PDDocument document = PDDocument.load(new File(targetNode.get("file").get("path").asText()));
+		try
+		{
+			assertEquals(3, document.getNumberOfPages());
+			assertTrue(document.getPage(0).getResources().getCOSObject() == document.getPage(2).getResources().getCOSObject());
+			PDFTextStripper stripper = new PDFTextStripper();
+			stripper.setStartPage(3);
+			stripper.setEndPage(3);
+			Language language = Language.valueOf(targetNode.get("bills").get(2).get("form").get("language").asText());
+			assertTrue(stripper.getText(document).contains(MultilingualText.getText(MultilingualText.KEY_PAYMENT_PART, language)));
+		}
+		finally
+		{
+			document.close();
+		}
+	}
+	
+	@Test
+	public void testGeneratePrintRunWithInvalidBill() throws JsonMappingException, JsonProcessingException
+	{
+		ObjectNode run = mapper.createObjectNode();
+		run.putObject("path").put("output", this.output);
+		ArrayNode bills = run.putArray("bills");
+		for (int i = 0; i < 2; i++)
+		{
+			ObjectNode node = bills.addObject();
+			ObjectNode form = node.putObject("form");
+			form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+			form.put("graphics_format", i == 0 ? GraphicsFormat.PDF.name() : GraphicsFormat.SVG.name());
+			form.put("language", Language.DE.name());
+			node.put("iban", "CH4431999123000889012");
+			node.put("amount", 199.95);
+			node.put("currency", "CHF");
+			node.put("invoice", i);
+			node.put("reference", "123451234567");
+			ObjectNode creditor = node.putObject("creditor");
+			creditor.put("name", "Robert Schneider AG");
+			creditor.put("address", "Rue du Lac 1268/2/22");
+			creditor.put("city", "2501 Biel");
+			creditor.put("country", "CH");
+			node.put("message", "Abonnement für 2020");
+		}
+		String result = new SwissQRBillGenerator().generatePrintRun(run.toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertNull(targetNode.get("file"));
+		assertEquals("OK", targetNode.get("bills").get(0).get("result").asText());
+		assertEquals("ERROR", targetNode.get("bills").get(1).get("result").asText());
+		assertEquals("'graphics_format' muss für einen Druckauftrag PDF sein.", targetNode.get("bills").get(1).get("errors").get(0).get("form.graphics_format").asText());
+	}
+	
+	@Test
+	public void testWarmUp() throws JsonMappingException, JsonProcessingException
+	{
+		SwissQRBillGenerator.warmUp();
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		String result = new SwissQRBillGenerator().generate(node.toString());
+		JsonNode targetNode = this.mapper.readTree(result);
+		assertEquals("OK", targetNode.get("result").asText());
+	}
+	
+	@Test
+	public void testDrawingCache() throws IOException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.SVG.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		JsonNode expected = this.mapper.readTree(new SwissQRBillGenerator().generate(node.toString()));
+		SwissQRBillGenerator generator = SwissQRBillGenerator.builder().drawingCacheSize(10).build();
+		for (int i = 0; i < 2; i++)
+		{
+			JsonNode targetNode = this.mapper.readTree(generator.generate(node.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			assertEquals(expected.get("file").get("qrbill").asText(), targetNode.get("file").get("qrbill").asText());
+		}
+		assertEquals(1, generator.getDrawingCacheMisses());
+		assertEquals(1, generator.getDrawingCacheHits());
+		node.put("amount", 99.95);
+		assertEquals("OK", this.mapper.readTree(generator.generate(node.toString())).get("result").asText());
+		assertEquals(2, generator.getDrawingCacheMisses());
+	}
+
+	@Test
+	public void testTimings() throws JsonMappingException, JsonProcessingException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		JsonNode targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		assertNull(targetNode.get("timings"));
+		node.putObject("options").put("timings", true);
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		JsonNode timingsNode = targetNode.get("timings");
+		assertEquals(7, timingsNode.size());
+		assertTrue(timingsNode.get("parse").asLong() > 0L);
+		assertTrue(timingsNode.get("mapping").asLong() > 0L);
+		assertTrue(timingsNode.get("validation").asLong() > 0L);
+		assertTrue(timingsNode.get("rendering").asLong() > 0L);
+		assertEquals(0L, timingsNode.get("invoice_loading").asLong());
+		assertTrue(timingsNode.get("file_write").asLong() > 0L);
+		assertTrue(timingsNode.get("response").asLong() > 0L);
+	}
+
+	@Test
+	public void testJmxMetrics() throws IOException, JMException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.SVG.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		JmxMetrics metrics = JmxMetrics.register("testJmxMetrics");
+		try
+		{
+			SwissQRBillGenerator generator = SwissQRBillGenerator.builder().metricsListener(metrics).build();
+			JsonNode targetNode = this.mapper.readTree(generator.generate(node.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			long size = targetNode.get("file").get("size").asLong();
+			targetNode = this.mapper.readTree(generator.generate("[1"));
+			assertEquals("ERROR", targetNode.get("result").asText());
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(Long.valueOf(1L), server.getAttribute(metrics.getObjectName(), "SuccessCount"));
+			assertEquals(Long.valueOf(1L), server.getAttribute(metrics.getObjectName(), "ErrorCount"));
+			assertEquals(Long.valueOf(2L), server.getAttribute(metrics.getObjectName(), "StandaloneCount"));
+			assertEquals(Long.valueOf(size), server.getAttribute(metrics.getObjectName(), "BytesWritten"));
+			assertEquals(Long.valueOf(1L), metrics.getCountByGraphicsFormat().get(GraphicsFormat.SVG.name()));
+			assertEquals(Long.valueOf(1L), metrics.getCountByOutputSize().get(OutputSize.QR_BILL_ONLY.name()));
+			assertTrue(metrics.getLatencyP99() > 0D);
+			assertTrue(metrics.getLatencyP99() <= metrics.getLatencyMax());
+
+			ObjectNode run = mapper.createObjectNode();
+			run.putObject("path").put("output", this.output);
+			run.putObject("options").put("payload", false);
+			ObjectNode bill = run.putArray("bills").addObject().setAll(node);
+			bill.remove("path");
+			((ObjectNode) bill.get("form")).put("graphics_format", GraphicsFormat.PDF.name());
+			targetNode = this.mapper.readTree(generator.generatePrintRun(run.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			size += targetNode.get("file").get("size").asLong();
+			((ObjectNode) run.get("options")).put("dry_run", true);
+			targetNode = this.mapper.readTree(generator.generatePrintRun(run.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			assertEquals(Long.valueOf(2L), server.getAttribute(metrics.getObjectName(), "SuccessCount"));
+			assertEquals(Long.valueOf(1L), metrics.getCountByGraphicsFormat().get(GraphicsFormat.PDF.name()));
+			assertEquals(Long.valueOf(size), server.getAttribute(metrics.getObjectName(), "BytesWritten"));
+		}
+		finally
+		{
+			metrics.unregister();
+		}
+	}
+
+	@Test
+	public void testFailFastValidation() throws JsonMappingException, JsonProcessingException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("message", "Abonnement für 2020");
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		JsonNode targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertEquals(5, targetNode.get("errors").size());
+		assertEquals("'iban' muss die IBAN oder QR-IBAN des Rechnungstellers enthalten.", targetNode.get("errors").get(0).get(String.valueOf(iid)).asText());
+		assertEquals(OutputSize.A4_PORTRAIT_SHEET.name(), targetNode.get("form").get("output_size").asText());
+		node.putObject("options").put("validation", "FAIL_FAST");
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertEquals(1, targetNode.get("errors").size());
+		assertEquals("'iban' muss die IBAN oder QR-IBAN des Rechnungstellers enthalten.", targetNode.get("errors").get(0).get(String.valueOf(iid)).asText());
+		assertNull(targetNode.get("form"));
+		((ObjectNode) node.get("options")).put("validation", "SOMETIMES");
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("'validation' muss eines der folgenden Werte sein: COLLECT_ALL, FAIL_FAST", targetNode.get("errors").get(0).get("options.validation").asText());
+	}
+
+	@Test
+	public void testDryRun() throws JsonMappingException, JsonProcessingException
+	{
+		File directory = Paths.get(System.getProperty("java.io.tmpdir"), UUID.randomUUID().toString()).toFile();
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", new File(directory, "QRBill.pdf").getAbsolutePath());
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		node.putObject("options").put("dry_run", true);
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		JsonNode targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		assertNull(targetNode.get("file"));
+		assertTrue(!directory.exists());
+		node.put("iban", "CH4431999123000889013");
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertEquals(1, targetNode.get("errors").size());
+		assertEquals("'account' ist ungültig (account_is_valid_iban).", targetNode.get("errors").get(0).get(String.valueOf(iid)).asText());
+		assertTrue(!directory.exists());
+	}
+
+	@Test
+	public void testGenerateAsync() throws IOException, InterruptedException, ExecutionException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		path.put("invoice", this.invoice);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_EXTRA_SPACE.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		AtomicInteger renderTasks = new AtomicInteger();
+		AtomicInteger ioTasks = new AtomicInteger();
+		try
+		{
+			SwissQRBillGenerator generator = SwissQRBillGenerator.builder().renderExecutor(command ->
+			{
+				renderTasks.incrementAndGet();
+				pool.execute(command);
+			}).ioExecutor(command ->
+			{
+				ioTasks.incrementAndGet();
+				pool.execute(command);
+			}).build();
+			JsonNode expected = this.mapper.readTree(generator.generate(node.toString()));
+			JsonNode targetNode = this.mapper.readTree(generator.generateAsync(node.toString()).get());
+			assertEquals("OK", targetNode.get("result").asText());
+			assertEquals(expected.get("file").get("size").asLong(), targetNode.get("file").get("size").asLong());
+			assertEquals(2, renderTasks.get());
+			assertEquals(2, ioTasks.get());
+			node.remove("iban");
+			targetNode = this.mapper.readTree(generator.generateAsync(node.toString()).get());
+			assertEquals("ERROR", targetNode.get("result").asText());
+			assertEquals("'iban' muss die IBAN oder QR-IBAN des Rechnungstellers enthalten.", targetNode.get("errors").get(0).get(String.valueOf(iid)).asText());
+			assertEquals(3, renderTasks.get());
+			assertEquals(2, ioTasks.get());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testAppendIncremental() throws IOException
+	{
+		File invoice = new File(System.getProperty("java.io.tmpdir"), "QRBillInvoice.pdf");
+		Files.copy(Paths.get(System.getProperty("user.home"), "Documents", "invoice.pdf"), invoice.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		byte[] original = Files.readAllBytes(invoice.toPath());
+		String invoicePath = new File(new File(this.output).getParent(), invoice.getName()).getPath();
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", invoicePath);
+		path.put("invoice", invoicePath);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_EXTRA_SPACE.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		ObjectNode options = node.putObject("options");
+		options.put("payload", false);
+		options.put("append_mode", "INCREMENTAL");
+		try
+		{
+			String result = new SwissQRBillGenerator().generate(node.toString());
+			JsonNode targetNode = this.mapper.readTree(result);
+			assertEquals("OK", targetNode.get("result").asText());
+			byte[] appended = Files.readAllBytes(invoice.toPath());
+			assertTrue(appended.length > original.length);
+			assertArrayEquals(original, Arrays.copyOf(appended, original.length));
+			PDDocument document = PDDocument.load(appended);
+			try
+			{
+				assertEquals(1, document.getNumberOfPages());
+				assertTrue(new PDFTextStripper().getText(document).contains(MultilingualText.getText(MultilingualText.KEY_PAYMENT_PART, Language.valueOf(targetNode.get("form").get("language").asText()))));
+			}
+			finally
+			{
+				document.close();
+			}
+		}
+		finally
+		{
+			invoice.delete();
+		}
+	}
+
+	@Test
+	public void testPngRaster() throws IOException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_ONLY.name());
+		form.put("graphics_format", GraphicsFormat.PNG.name());
+		form.put("language", Language.DE.name());
+		form.put("resolution", 300);
+		form.put("compression_level", 6);
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		JsonNode targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		assertEquals(300, targetNode.get("form").get("resolution").asInt());
+		assertEquals(6, targetNode.get("form").get("compression_level").asInt());
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(targetNode.get("file").get("qrbill").binaryValue()));
+		assertEquals(2480, image.getWidth());
+		assertEquals(1240, image.getHeight());
+		form.put("resolution", 50);
+		form.put("compression_level", "fast");
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertEquals("'resolution' muss eine Ganzzahl zwischen 72 und 600 (dpi) sein.", targetNode.get("errors").get(0).get("form.resolution").asText());
+		assertEquals("'compression_level' muss eine Ganzzahl zwischen 0 (keine Kompression) und 9 (stärkste Kompression) sein.", targetNode.get("errors").get(1).get("form.compression_level").asText());
+	}
+
+	@Test
+	public void testGenerateToWriter() throws IOException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		path.put("invoice", this.invoice);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_EXTRA_SPACE.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		JsonNode expected = this.mapper.readTree(generator.generate(node.toString()));
+		StringWriter writer = new StringWriter();
+		generator.generateTo(node.toString(), writer);
+		assertEquals(expected, this.mapper.readTree(writer.toString()));
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		generator.generateTo(node.toString(), os);
+		assertEquals(expected, this.mapper.readTree(os.toByteArray()));
+		node.remove("iban");
+		writer = new StringWriter();
+		generator.generateTo(node.toString(), writer);
+		assertEquals(this.mapper.readTree(generator.generate(node.toString())), this.mapper.readTree(writer.toString()));
+	}
+
+	@Test
+	public void testGenerateBinary() throws IOException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		path.put("invoice", this.invoice);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_EXTRA_SPACE.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		JsonNode expected = this.mapper.readTree(generator.generate(node.toString()));
+		byte[] document = ObjectNode.class.cast(expected.get("file")).remove("qrbill").binaryValue();
+		ByteBuffer buffer = generator.generateBinary(node.toString());
+		byte[] header = new byte[buffer.getInt()];
+		buffer.get(header);
+		assertEquals(expected, this.mapper.readTree(header));
+		assertEquals(expected.get("file").get("size").asInt(), buffer.remaining());
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		assertArrayEquals(document, bytes);
+		node.remove("iban");
+		buffer = generator.generateBinary(node.toString());
+		header = new byte[buffer.getInt()];
+		buffer.get(header);
+		assertEquals("ERROR", this.mapper.readTree(header).get("result").asText());
+		assertEquals(0, buffer.remaining());
+	}
+
+	@Test
+	public void testCompactPdf() throws IOException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		path.put("invoice", this.invoice);
+		ObjectNode form = node.putObject("form");
+		form.put("output_size", OutputSize.QR_BILL_EXTRA_SPACE.name());
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.put("message", "Abonnement für 2020");
+		ObjectNode options = node.putObject("options");
+		options.put("payload", false);
+		options.put("append_mode", "FILE");
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		JsonNode targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		long size = targetNode.get("file").get("size").asLong();
+		options.put("compact", true);
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		assertTrue(targetNode.get("file").get("size").asLong() < size);
+		File file = new File(targetNode.get("file").get("path").asText());
+		assertTrue(new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1).startsWith("%PDF-1.5"));
+		PDDocument document = PDDocument.load(file);
+		try
+		{
+			assertEquals(1, document.getNumberOfPages());
+			Language language = Language.valueOf(targetNode.get("form").get("language").asText());
+			assertTrue(new PDFTextStripper().getText(document).contains(MultilingualText.getText(MultilingualText.KEY_PAYMENT_PART, language)));
+		}
+		finally
+		{
+			document.close();
+		}
+	}
+
+	@Test
+	public void testOutputRoot() throws IOException
+	{
+		String root = this.output.replace("QRBill.pdf", "QRBills");
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output_root", root);
+		ObjectNode form = node.putObject("form");
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", "R-2020/4711");
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.putObject("options").put("payload", false);
+		SwissQRBillGenerator generator = new SwissQRBillGenerator();
+		JsonNode targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		File file = new File(targetNode.get("file").get("path").asText());
+		assertTrue(file.isFile());
+		assertEquals("QRBill_R-2020_4711.pdf", file.getName());
+		File directory = file.getParentFile().getParentFile().getParentFile();
+		assertTrue(directory.getPath().endsWith("QRBills"));
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals(file.getPath(), targetNode.get("file").get("path").asText());
+		FileUtils.deleteDirectory(file.getParentFile());
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		assertTrue(file.isFile());
+
+		path.put("layout", "DATE");
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("OK", targetNode.get("result").asText());
+		LocalDate today = LocalDate.now();
+		file = new File(targetNode.get("file").get("path").asText());
+		assertTrue(file.isFile());
+		assertTrue(file.getPath().endsWith(String.format("QRBills%2$s%1$tY%2$s%1$tm%2$s%1$td%2$sQRBill_R-2020_4711.pdf", today, File.separator)));
+
+		path.put("layout", "MONTH");
+		targetNode = this.mapper.readTree(generator.generate(node.toString()));
+		assertEquals("ERROR", targetNode.get("result").asText());
+		assertTrue(targetNode.get("errors").toString().contains("path.layout"));
+	}
+
+	@Test
+	public void testDocumentStore() throws IOException
+	{
+		ObjectNode node = mapper.createObjectNode();
+		ObjectNode path = node.putObject("path");
+		path.put("output", this.output);
+		ObjectNode form = node.putObject("form");
+		form.put("graphics_format", GraphicsFormat.PDF.name());
+		form.put("language", Language.DE.name());
+		node.put("iban", "CH4431999123000889012");
+		node.put("amount", 199.95);
+		node.put("currency", "CHF");
+		node.put("invoice", iid);
+		node.put("reference", "123451234567");
+		ObjectNode creditor = node.putObject("creditor");
+		creditor.put("name", "Robert Schneider AG");
+		creditor.put("address", "Rue du Lac 1268/2/22");
+		creditor.put("city", "2501 Biel");
+		creditor.put("country", "CH");
+		node.putObject("options").put("payload", false);
+		JsonNode targetNode = this.mapper.readTree(new SwissQRBillGenerator().generate(node.toString()));
+		File file = new File(targetNode.get("file").get("path").asText());
+		byte[] rendered = Files.readAllBytes(file.toPath());
+		targetNode = this.mapper.readTree(new SwissQRBillGenerator().generate(node.toString()));
+		assertArrayEquals(rendered, Files.readAllBytes(file.toPath()));
+
+		File store = Files.createTempDirectory("qrbillstore").toFile();
+		try
+		{
+			SwissQRBillGenerator generator = SwissQRBillGenerator.builder().documentStore(store.toPath(), true).build();
+			targetNode = this.mapper.readTree(generator.generate(node.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			List<File> entries = new ArrayList<File>(FileUtils.listFiles(store, null, true));
+			assertEquals(1, entries.size());
+			assertArrayEquals(rendered, Files.readAllBytes(entries.get(0).toPath()));
+			assertArrayEquals(rendered, Files.readAllBytes(file.toPath()));
+
+			targetNode = this.mapper.readTree(generator.generate(node.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			assertEquals(rendered.length, targetNode.get("file").get("size").asLong());
+			assertTrue(Files.isSameFile(file.toPath(), entries.get(0).toPath()));
+
+			ObjectNode incremental = node.deepCopy();
+			((ObjectNode) incremental.get("path")).put("invoice", this.output);
+			((ObjectNode) incremental.get("options")).put("append_mode", "INCREMENTAL");
+			targetNode = this.mapper.readTree(generator.generate(incremental.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			assertTrue(file.length() > rendered.length);
+			assertArrayEquals(rendered, Files.readAllBytes(entries.get(0).toPath()));
+			targetNode = this.mapper.readTree(generator.generate(node.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			assertArrayEquals(rendered, Files.readAllBytes(file.toPath()));
+
+			ObjectNode append = node.deepCopy();
+			append.put("amount", 200.00);
+			((ObjectNode) append.get("path")).put("invoice", this.invoice);
+			((ObjectNode) append.get("options")).put("append_mode", "FILE");
+			assertTrue(Files.isSameFile(file.toPath(), entries.get(0).toPath()));
+			targetNode = this.mapper.readTree(generator.generate(append.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			assertArrayEquals(rendered, Files.readAllBytes(entries.get(0).toPath()));
+			targetNode = this.mapper.readTree(generator.generate(node.toString()));
+			assertArrayEquals(rendered, Files.readAllBytes(file.toPath()));
+
+			ObjectNode run = mapper.createObjectNode();
+			run.putObject("path").put("output", this.output);
+			run.putObject("options").put("payload", false);
+			ObjectNode bill = run.putArray("bills").addObject().setAll(node);
+			bill.remove("path");
+			bill.remove("options");
+			bill.put("amount", 300.00);
+			assertTrue(Files.isSameFile(file.toPath(), entries.get(0).toPath()));
+			targetNode = this.mapper.readTree(generator.generatePrintRun(run.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			assertArrayEquals(rendered, Files.readAllBytes(entries.get(0).toPath()));
+			targetNode = this.mapper.readTree(generator.generate(node.toString()));
+			assertArrayEquals(rendered, Files.readAllBytes(file.toPath()));
+
+			node.put("amount", 200.00);
+			targetNode = this.mapper.readTree(generator.generate(node.toString()));
+			assertEquals("OK", targetNode.get("result").asText());
+			assertEquals(3, FileUtils.listFiles(store, null, true).size());
+		}
+		finally
+		{
+			FileUtils.deleteDirectory(store);
+		}
+	}
 }
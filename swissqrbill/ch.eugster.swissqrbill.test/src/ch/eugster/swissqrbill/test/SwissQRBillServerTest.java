@@ -0,0 +1,181 @@
+package ch.eugster.swissqrbill.test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import ch.eugster.swissqrbill.MetricsListener;
+import ch.eugster.swissqrbill.SwissQRBillGenerator;
+import ch.eugster.swissqrbill.server.SwissQRBillServer;
+
+public class SwissQRBillServerTest
+{
+	private SwissQRBillServer server;
+
+	private final CountDownLatch generating = new CountDownLatch(1);
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	@BeforeEach
+	public void beforeEach() throws IOException
+	{
+		/*
+		 * The listener is called at the end of a generation, while the request
+		 * still holds its admission; it keeps the first request there.
+		 */
+		MetricsListener listener = (success, graphicsFormat, outputSize, appended, bytesWritten, nanos) ->
+		{
+			this.generating.countDown();
+			try
+			{
+				this.release.await(30, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		};
+		SwissQRBillGenerator generator = SwissQRBillGenerator.builder().metricsListener(listener).build();
+		this.server = SwissQRBillServer.builder().generator(generator).port(0).concurrency(1).queueSize(0).retryAfter(2).maxRequestSize(1024).build();
+		this.server.start();
+	}
+
+	@AfterEach
+	public void afterEach()
+	{
+		this.release.countDown();
+		this.server.stop(0);
+	}
+
+	@Test
+	public void testHealth() throws IOException
+	{
+		HttpURLConnection connection = this.open("/health");
+		assertEquals(200, connection.getResponseCode());
+		assertEquals("{\"result\":\"OK\"}", this.read(connection));
+	}
+
+	@Test
+	public void testUnknownPathAndMethod() throws IOException
+	{
+		assertEquals(404, this.post("/unknown", "{}").getResponseCode());
+		HttpURLConnection connection = this.open("/generate");
+		assertEquals(405, connection.getResponseCode());
+		assertEquals("POST", connection.getHeaderField("Allow"));
+	}
+
+	@Test
+	public void testRejectedWhenBusy() throws Exception
+	{
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			Future<Integer> first = executor.submit(() -> this.post("/generate", "{}").getResponseCode());
+			assertTrue(this.generating.await(30, TimeUnit.SECONDS));
+
+			HttpURLConnection second = this.post("/generate", "{}");
+			assertEquals(503, second.getResponseCode());
+			assertEquals("2", second.getHeaderField("Retry-After"));
+			assertTrue(this.read(second).contains("\"result\":\"ERROR\""));
+			assertEquals(1L, this.server.getRejected());
+
+			this.release.countDown();
+			assertEquals(Integer.valueOf(200), first.get(30, TimeUnit.SECONDS));
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testRequestTooLarge() throws IOException
+	{
+		StringBuilder json = new StringBuilder("{\"message\":\"");
+		while (json.length() < 2048)
+		{
+			json.append("Abonnement für 2020 ");
+		}
+		HttpURLConnection connection = this.post("/generate", json.append("\"}").toString());
+		assertEquals(413, connection.getResponseCode());
+		assertTrue(this.read(connection).contains("1024"));
+	}
+
+	@Test
+	public void testInvalidContentLength() throws IOException
+	{
+		assertTrue(this.send("-5").startsWith("HTTP/1.1 400"));
+		assertTrue(this.send("abc").startsWith("HTTP/1.1 400"));
+	}
+
+	private HttpURLConnection open(String path) throws IOException
+	{
+		URL url = new URL("http", "localhost", this.server.getAddress().getPort(), path);
+		return (HttpURLConnection) url.openConnection();
+	}
+
+	private HttpURLConnection post(String path, String json) throws IOException
+	{
+		HttpURLConnection connection = this.open(path);
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		try (OutputStream os = connection.getOutputStream())
+		{
+			os.write(json.getBytes(StandardCharsets.UTF_8));
+		}
+		return connection;
+	}
+
+	private String read(HttpURLConnection connection) throws IOException
+	{
+		InputStream is = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read = 0;
+		while ((read = is.read(buffer)) != -1)
+		{
+			body.write(buffer, 0, read);
+		}
+		is.close();
+		return new String(body.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * HttpURLConnection sets Content-Length itself, an invalid one is sent
+	 * over a plain socket. Returns the status line.
+	 */
+	private String send(String contentLength) throws IOException
+	{
+		try (Socket socket = new Socket("localhost", this.server.getAddress().getPort()))
+		{
+			OutputStream os = socket.getOutputStream();
+			os.write(("POST /generate HTTP/1.1\r\nHost: localhost\r\nContent-Length: " + contentLength + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+			os.flush();
+			InputStream is = socket.getInputStream();
+			StringBuilder line = new StringBuilder();
+			int c = 0;
+			while ((c = is.read()) != -1 && c != '\r')
+			{
+				line.append((char) c);
+			}
+			return line.toString();
+		}
+	}
+}
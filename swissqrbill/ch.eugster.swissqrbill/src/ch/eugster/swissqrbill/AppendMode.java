@@ -0,0 +1,25 @@
+package ch.eugster.swissqrbill;
+
+/*
+ * How a bill is appended to the document given in path.invoice.
+ */
+enum AppendMode
+{
+	/*
+	 * The invoice is read into memory and the merged document is written
+	 * as a whole.
+	 */
+	MEMORY,
+	/*
+	 * The invoice is read from the file on demand, within the memory budget
+	 * of the generator, and the merged document is streamed to path.output.
+	 */
+	FILE,
+	/*
+	 * Like FILE, but the bill is written as an incremental update: the
+	 * bytes of the invoice are copied unchanged and only the changed page
+	 * and the new objects are appended with a new xref section. Less is
+	 * written and existing signatures stay valid.
+	 */
+	INCREMENTAL;
+}
@@ -0,0 +1,66 @@
+package ch.eugster.swissqrbill;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Function;
+
+/*
+ * Splits a list of independent requests until single items remain and
+ * processes these on the fork join pool. The results keep the order of
+ * the requests.
+ */
+final class BatchTask<T, R> extends RecursiveAction
+{
+	private static final long serialVersionUID = 1L;
+
+	private final List<T> items;
+
+	private final Object[] results;
+
+	private final Function<T, R> function;
+
+	private final int from;
+
+	private final int to;
+
+	private BatchTask(List<T> items, Object[] results, Function<T, R> function, int from, int to)
+	{
+		this.items = items;
+		this.results = results;
+		this.function = function;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute()
+	{
+		if (this.to - this.from <= 1)
+		{
+			for (int i = this.from; i < this.to; i++)
+			{
+				this.results[i] = this.function.apply(this.items.get(i));
+			}
+		}
+		else
+		{
+			int middle = (this.from + this.to) >>> 1;
+			invokeAll(new BatchTask<T, R>(this.items, this.results, this.function, this.from, middle),
+					new BatchTask<T, R>(this.items, this.results, this.function, middle, this.to));
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T, R> List<R> invoke(ForkJoinPool pool, List<T> items, Function<T, R> function)
+	{
+		Object[] results = new Object[items.size()];
+		if (!items.isEmpty())
+		{
+			pool.invoke(new BatchTask<T, R>(items, results, function, 0, items.size()));
+		}
+		return new ArrayList<R>((List<R>) Arrays.asList(results));
+	}
+}
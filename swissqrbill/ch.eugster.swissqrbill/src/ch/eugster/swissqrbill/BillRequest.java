@@ -0,0 +1,278 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/*
+ * The fields of a single bill request, read in one pass from a JsonParser
+ * without building a tree. Values are taken as JsonNode.asText() and
+ * asDouble() would take them, so numbers are accepted for texts (e.g. the
+ * invoice number) and texts for numbers. Missing values and json null are
+ * null. Unknown fields are skipped.
+ */
+final class BillRequest
+{
+	String invoice;
+
+	/*
+	 * path
+	 */
+	String output;
+
+	String outputRoot;
+
+	String layout;
+
+	String invoicePath;
+
+	/*
+	 * form
+	 */
+	String language;
+
+	String outputSize;
+
+	String graphicsFormat;
+
+	String resolution;
+
+	String compressionLevel;
+
+	Double amount;
+
+	String currency;
+
+	String iban;
+
+	String reference;
+
+	String message;
+
+	/*
+	 * Always present, so a missing creditor gives the same errors as a
+	 * creditor without fields.
+	 */
+	Party creditor = new Party();
+
+	Party debtor;
+
+	/*
+	 * options
+	 */
+	Boolean payload;
+
+	String hash;
+
+	String appendMode;
+
+	String validation;
+
+	boolean timings;
+
+	boolean dryRun;
+
+	Boolean compact;
+
+	static final class Party
+	{
+		String name;
+
+		String address;
+
+		String city;
+
+		String country;
+	}
+
+	private interface FieldReader
+	{
+		void read(String name) throws IOException;
+	}
+
+	/*
+	 * Reads the object the parser is positioned at (after nextToken()
+	 * returned START_OBJECT) up to and including its END_OBJECT.
+	 */
+	static BillRequest read(JsonParser parser) throws IOException
+	{
+		BillRequest request = new BillRequest();
+		readObject(parser, name ->
+		{
+			switch (name)
+			{
+				case "invoice":
+					request.invoice = text(parser);
+					break;
+				case "path":
+					readObject(parser, pathName ->
+					{
+						switch (pathName)
+						{
+							case "output":
+								request.output = text(parser);
+								break;
+							case "output_root":
+								request.outputRoot = text(parser);
+								break;
+							case "layout":
+								request.layout = text(parser);
+								break;
+							case "invoice":
+								request.invoicePath = text(parser);
+								break;
+							default:
+								parser.skipChildren();
+						}
+					});
+					break;
+				case "form":
+					readObject(parser, formName ->
+					{
+						switch (formName)
+						{
+							case "language":
+								request.language = text(parser);
+								break;
+							case "output_size":
+								request.outputSize = text(parser);
+								break;
+							case "graphics_format":
+								request.graphicsFormat = text(parser);
+								break;
+							case "resolution":
+								request.resolution = text(parser);
+								break;
+							case "compression_level":
+								request.compressionLevel = text(parser);
+								break;
+							default:
+								parser.skipChildren();
+						}
+					});
+					break;
+				case "amount":
+					request.amount = parser.currentToken() == JsonToken.VALUE_NULL ? null : Double.valueOf(parser.getValueAsDouble(0D));
+					parser.skipChildren();
+					break;
+				case "currency":
+					request.currency = text(parser);
+					break;
+				case "iban":
+					request.iban = text(parser);
+					break;
+				case "reference":
+					request.reference = text(parser);
+					break;
+				case "message":
+					request.message = text(parser);
+					break;
+				case "creditor":
+					readParty(parser, request.creditor);
+					break;
+				case "debtor":
+					if (parser.currentToken() == JsonToken.START_OBJECT)
+					{
+						request.debtor = new Party();
+					}
+					readParty(parser, request.debtor);
+					break;
+				case "options":
+					readObject(parser, optionName ->
+					{
+						switch (optionName)
+						{
+							case "payload":
+								request.payload = parser.currentToken() == JsonToken.VALUE_NULL ? null : Boolean.valueOf(parser.getValueAsBoolean(true));
+								parser.skipChildren();
+								break;
+							case "hash":
+								request.hash = text(parser);
+								break;
+							case "append_mode":
+								request.appendMode = text(parser);
+								break;
+							case "validation":
+								request.validation = text(parser);
+								break;
+							case "dry_run":
+								request.dryRun = parser.getValueAsBoolean(false);
+								parser.skipChildren();
+								break;
+							case "compact":
+								request.compact = parser.currentToken() == JsonToken.VALUE_NULL ? null : Boolean.valueOf(parser.getValueAsBoolean(false));
+								parser.skipChildren();
+								break;
+							case "timings":
+								request.timings = parser.getValueAsBoolean(false);
+								parser.skipChildren();
+								break;
+							default:
+								parser.skipChildren();
+						}
+					});
+					break;
+				default:
+					parser.skipChildren();
+			}
+		});
+		return request;
+	}
+
+	private static void readParty(JsonParser parser, Party party) throws IOException
+	{
+		readObject(parser, name ->
+		{
+			switch (name)
+			{
+				case "name":
+					party.name = text(parser);
+					break;
+				case "address":
+					party.address = text(parser);
+					break;
+				case "city":
+					party.city = text(parser);
+					break;
+				case "country":
+					party.country = text(parser);
+					break;
+				default:
+					parser.skipChildren();
+			}
+		});
+	}
+
+	/*
+	 * Passes the name of each field to the reader, with the parser
+	 * positioned at the value. Anything but an object is skipped.
+	 */
+	private static void readObject(JsonParser parser, FieldReader reader) throws IOException
+	{
+		if (parser.currentToken() != JsonToken.START_OBJECT)
+		{
+			parser.skipChildren();
+			return;
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME)
+		{
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			reader.read(name);
+		}
+	}
+
+	/*
+	 * Like JsonNode.asText(): objects and arrays give an empty string.
+	 */
+	private static String text(JsonParser parser) throws IOException
+	{
+		if (parser.currentToken().isStructStart())
+		{
+			parser.skipChildren();
+			return "";
+		}
+		return parser.getValueAsString();
+	}
+}
@@ -0,0 +1,116 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.codecrete.qrbill.canvas.Canvas;
+import net.codecrete.qrbill.canvas.PDFCanvas;
+import net.codecrete.qrbill.canvas.PNGCanvas;
+import net.codecrete.qrbill.canvas.SVGCanvas;
+import net.codecrete.qrbill.generator.BillFormat;
+import net.codecrete.qrbill.generator.OutputSize;
+import net.codecrete.qrbill.generator.QRBill;
+import net.codecrete.qrbill.generator.QRBillGenerationException;
+
+/*
+ * Creates the canvas QRBill.generate would use for a format, so the
+ * document can be written to a stream instead of being returned as a
+ * byte array.
+ */
+final class CanvasFactory
+{
+	private CanvasFactory()
+	{
+	}
+
+	static Canvas createCanvas(BillFormat format) throws IOException
+	{
+		return createCanvas(format, -1);
+	}
+
+	/*
+	 * A compressionLevel between 0 and 9 draws a png with PNGRasterCanvas
+	 * using this deflate level, -1 with the PNGCanvas of the library.
+	 */
+	static Canvas createCanvas(BillFormat format, int compressionLevel) throws IOException
+	{
+		double drawingWidth = getDrawingWidth(format.getOutputSize());
+		double drawingHeight = getDrawingHeight(format.getOutputSize());
+
+		switch (format.getGraphicsFormat())
+		{
+			case SVG:
+				return new SVGCanvas(drawingWidth, drawingHeight, format.getFontFamily());
+			case PDF:
+				return new PDFCanvas(drawingWidth, drawingHeight);
+			case PNG:
+				if (compressionLevel >= 0)
+				{
+					return new PNGRasterCanvas(drawingWidth, drawingHeight, format.getResolution(), format.getFontFamily(), compressionLevel);
+				}
+				return new PNGCanvas(drawingWidth, drawingHeight, format.getResolution(), format.getFontFamily());
+			default:
+				throw new QRBillGenerationException("Invalid graphics format specified");
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	static double getDrawingWidth(OutputSize outputSize)
+	{
+		switch (outputSize)
+		{
+			case QR_BILL_ONLY:
+				return QRBill.QR_BILL_WIDTH;
+			case QR_BILL_EXTRA_SPACE:
+			case QR_BILL_WITH_HORIZONTAL_LINE:
+				return QRBill.QR_BILL_WITH_HORI_LINE_WIDTH;
+			case QR_CODE_ONLY:
+				return QRBill.QR_CODE_WIDTH;
+			case A4_PORTRAIT_SHEET:
+			default:
+				return QRBill.A4_PORTRAIT_WIDTH;
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	static double getDrawingHeight(OutputSize outputSize)
+	{
+		switch (outputSize)
+		{
+			case QR_BILL_ONLY:
+				return QRBill.QR_BILL_HEIGHT;
+			case QR_BILL_EXTRA_SPACE:
+			case QR_BILL_WITH_HORIZONTAL_LINE:
+				return QRBill.QR_BILL_WITH_HORI_LINE_HEIGHT;
+			case QR_CODE_ONLY:
+				return QRBill.QR_CODE_HEIGHT;
+			case A4_PORTRAIT_SHEET:
+			default:
+				return QRBill.A4_PORTRAIT_HEIGHT;
+		}
+	}
+
+	static void writeTo(Canvas canvas, OutputStream os) throws IOException
+	{
+		if (canvas instanceof PDFCanvas)
+		{
+			((PDFCanvas) canvas).writeTo(os);
+		}
+		else if (canvas instanceof SVGCanvas)
+		{
+			((SVGCanvas) canvas).writeTo(os);
+		}
+		else if (canvas instanceof PNGCanvas)
+		{
+			((PNGCanvas) canvas).writeTo(os);
+		}
+		else if (canvas instanceof PNGRasterCanvas)
+		{
+			((PNGRasterCanvas) canvas).writeTo(os);
+		}
+		else
+		{
+			throw new QRBillGenerationException("Invalid canvas " + canvas.getClass().getName());
+		}
+	}
+}
@@ -0,0 +1,612 @@
+package ch.eugster.swissqrbill;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+import org.apache.pdfbox.pdmodel.PDDocument;
+
+/*
+ * Writes a document as PDF 1.5 with the objects packed into compressed
+ * object streams and a compressed cross-reference stream instead of the
+ * classic table, which PDFBox 2 cannot write. Besides
+ *
+ * - only the objects reachable from the trailer are written, numbered
+ *   from 1 in the order they are reached,
+ * - streams without filter (e.g. content streams of invoices written
+ *   uncompressed) are compressed,
+ * - equal objects (e.g. the same image or font program embedded for
+ *   every page) are written once. Objects are equal if their contents
+ *   are and the objects they refer to are equal; objects in a cycle of
+ *   references (the page tree) are written as they are.
+ *
+ * Encrypted documents are saved by PDFBox as they are.
+ */
+final class CompactPDFWriter
+{
+	private static final int OBJECTS_PER_STREAM = 200;
+
+	private static final ByteBuffer NO_KEY = ByteBuffer.allocate(0);
+
+	private static final byte[] HEADER = "%PDF-1.5\n%\u00e2\u00e3\u00cf\u00d3\n".getBytes(StandardCharsets.ISO_8859_1);
+
+	/*
+	 * The number of each object written as indirect object.
+	 */
+	private final Map<COSBase, Integer> numbers = new IdentityHashMap<COSBase, Integer>();
+
+	/*
+	 * The objects to write, object number n at index n - 1.
+	 */
+	private final List<COSBase> objects = new ArrayList<COSBase>();
+
+	/*
+	 * The number of the first object written per content key.
+	 */
+	private final Map<ByteBuffer, Integer> contents = new HashMap<ByteBuffer, Integer>();
+
+	private final Map<COSBase, ByteBuffer> keys = new IdentityHashMap<COSBase, ByteBuffer>();
+
+	private final Map<COSBase, Boolean> visiting = new IdentityHashMap<COSBase, Boolean>();
+
+	/*
+	 * The data of the streams compressed while collecting.
+	 */
+	private final Map<COSStream, byte[]> compressed = new IdentityHashMap<COSStream, byte[]>();
+
+	private final Deque<COSBase> pending = new ArrayDeque<COSBase>();
+
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+	private CompactPDFWriter()
+	{
+	}
+
+	static void write(PDDocument document, OutputStream os) throws IOException
+	{
+		if (document.isEncrypted())
+		{
+			document.save(os);
+			return;
+		}
+		CompactPDFWriter writer = new CompactPDFWriter();
+		try
+		{
+			writer.write(document.getDocument().getTrailer(), os);
+		}
+		finally
+		{
+			writer.deflater.end();
+		}
+	}
+
+	static byte[] compact(byte[] pdf) throws IOException
+	{
+		try (PDDocument document = PDDocument.load(pdf))
+		{
+			ByteArrayOutputStream os = new ByteArrayOutputStream(pdf.length);
+			write(document, os);
+			return os.toByteArray();
+		}
+	}
+
+	private void write(COSDictionary trailer, OutputStream target) throws IOException
+	{
+		this.collect(trailer.getItem(COSName.ROOT));
+		this.collect(trailer.getItem(COSName.INFO));
+		while (!this.pending.isEmpty())
+		{
+			this.collectChildren(this.pending.removeFirst());
+		}
+
+		CountingOutputStream os = new CountingOutputStream(target);
+		os.write(HEADER);
+		int size = this.objects.size() + 1;
+		int objectStreams = (this.objects.size() + OBJECTS_PER_STREAM - 1) / OBJECTS_PER_STREAM;
+		long[] offsets = new long[size + objectStreams + 1];
+		int[] containers = new int[offsets.length];
+		int[] indexes = new int[offsets.length];
+		List<Integer> packed = new ArrayList<Integer>();
+		int nextNumber = size;
+		for (int number = 1; number < size; number++)
+		{
+			COSBase object = this.objects.get(number - 1);
+			if (object instanceof COSStream)
+			{
+				offsets[number] = os.getCount();
+				Tokens tokens = new Tokens();
+				tokens.writeText(number + " 0 obj\n");
+				this.writeStream((COSStream) object, tokens, os);
+				continue;
+			}
+			packed.add(Integer.valueOf(number));
+			if (packed.size() == OBJECTS_PER_STREAM)
+			{
+				offsets[nextNumber] = os.getCount();
+				this.writeObjectStream(nextNumber, packed, containers, indexes, os);
+				packed.clear();
+				nextNumber++;
+			}
+		}
+		if (!packed.isEmpty())
+		{
+			offsets[nextNumber] = os.getCount();
+			this.writeObjectStream(nextNumber, packed, containers, indexes, os);
+			nextNumber++;
+		}
+
+		int xref = nextNumber;
+		long xrefOffset = os.getCount();
+		offsets[xref] = xrefOffset;
+		int width = 1;
+		for (long max = Math.max(xrefOffset, xref); max > 0xff; max >>>= 8)
+		{
+			width++;
+		}
+		ByteArrayOutputStream entries = new ByteArrayOutputStream((xref + 1) * (width + 3));
+		for (int number = 0; number <= xref; number++)
+		{
+			if (number == 0)
+			{
+				writeEntry(entries, 0, 0, width, 0xffff);
+			}
+			else if (containers[number] > 0)
+			{
+				writeEntry(entries, 2, containers[number], width, indexes[number]);
+			}
+			else
+			{
+				writeEntry(entries, 1, offsets[number], width, 0);
+			}
+		}
+		byte[] data = this.deflate(entries.toByteArray());
+		Tokens tokens = new Tokens();
+		tokens.writeText(xref + " 0 obj\n<</Type/XRef/Size " + (xref + 1) + "/W[1 " + width + " 2]");
+		for (COSName key : new COSName[] { COSName.ROOT, COSName.INFO, COSName.ID })
+		{
+			COSBase value = trailer.getItem(key);
+			if (!Objects.isNull(value))
+			{
+				key.writePDF(tokens);
+				this.writeValue(value, tokens, false);
+			}
+		}
+		tokens.writeText("/Filter/FlateDecode/Length " + data.length + ">>stream\n");
+		tokens.writeTo(os);
+		os.write(data);
+		os.write("\nendstream\nendobj\nstartxref\n".getBytes(StandardCharsets.US_ASCII));
+		os.write((xrefOffset + "\n%%EOF\n").getBytes(StandardCharsets.US_ASCII));
+		os.flush();
+	}
+
+	/*
+	 * Numbers the object if it is written as indirect object, else looks
+	 * for indirect objects in it.
+	 */
+	private void collect(COSBase base) throws IOException
+	{
+		COSBase object = resolve(base);
+		if (Objects.isNull(object))
+		{
+			return;
+		}
+		if (isIndirect(base))
+		{
+			if (this.numbers.containsKey(object))
+			{
+				return;
+			}
+			ByteBuffer key = this.contentKey(object);
+			Integer number = key == NO_KEY ? null : this.contents.get(key);
+			if (Objects.isNull(number))
+			{
+				this.objects.add(object);
+				number = Integer.valueOf(this.objects.size());
+				if (key != NO_KEY)
+				{
+					this.contents.put(key, number);
+				}
+				this.pending.addLast(object);
+			}
+			else if (object instanceof COSStream)
+			{
+				this.compressed.remove(object);
+			}
+			this.numbers.put(object, number);
+		}
+		else
+		{
+			this.collectChildren(object);
+		}
+	}
+
+	private void collectChildren(COSBase object) throws IOException
+	{
+		if (object instanceof COSDictionary)
+		{
+			for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) object).entrySet())
+			{
+				if (!(object instanceof COSStream && entry.getKey().equals(COSName.LENGTH)))
+				{
+					this.collect(entry.getValue());
+				}
+			}
+		}
+		else if (object instanceof COSArray)
+		{
+			for (COSBase item : (COSArray) object)
+			{
+				this.collect(item);
+			}
+		}
+	}
+
+	/*
+	 * The digest of the content of an object, with the references replaced
+	 * by the keys of the objects referred to. NO_KEY if the object is part
+	 * of a cycle of references.
+	 */
+	private ByteBuffer contentKey(COSBase object) throws IOException
+	{
+		ByteBuffer key = this.keys.get(object);
+		if (!Objects.isNull(key))
+		{
+			return key;
+		}
+		if (this.visiting.containsKey(object))
+		{
+			return NO_KEY;
+		}
+		this.visiting.put(object, Boolean.TRUE);
+		try
+		{
+			MessageDigest digest = newDigest();
+			Tokens tokens = new Tokens();
+			key = NO_KEY;
+			if (object instanceof COSStream)
+			{
+				COSStream stream = (COSStream) object;
+				if (this.writeStreamDictionary(stream, -1, tokens, true))
+				{
+					digest.update(tokens.toByteArray());
+					if (Objects.isNull(stream.getItem(COSName.FILTER)))
+					{
+						byte[] data = this.streamData(stream);
+						this.compressed.put(stream, data);
+						digest.update(data);
+					}
+					else
+					{
+						try (InputStream is = stream.createRawInputStream())
+						{
+							byte[] buffer = new byte[8192];
+							int read = 0;
+							while ((read = is.read(buffer)) != -1)
+							{
+								digest.update(buffer, 0, read);
+							}
+						}
+					}
+					key = ByteBuffer.wrap(digest.digest());
+				}
+			}
+			else if (this.writeContent(object, tokens, true))
+			{
+				key = ByteBuffer.wrap(digest.digest(tokens.toByteArray()));
+			}
+			this.keys.put(object, key);
+			return key;
+		}
+		finally
+		{
+			this.visiting.remove(object);
+		}
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * The rule of COSWriter: referenced objects, streams and dictionaries
+	 * not marked direct are written as indirect objects.
+	 */
+	private static boolean isIndirect(COSBase base)
+	{
+		return base instanceof COSObject || base instanceof COSStream || (base instanceof COSDictionary && !base.isDirect());
+	}
+
+	private static COSBase resolve(COSBase base)
+	{
+		return base instanceof COSObject ? ((COSObject) base).getObject() : base;
+	}
+
+	private void writeObjectStream(int number, List<Integer> packed, int[] containers, int[] indexes, OutputStream os) throws IOException
+	{
+		Tokens offsets = new Tokens();
+		Tokens body = new Tokens();
+		for (int i = 0; i < packed.size(); i++)
+		{
+			int packedNumber = packed.get(i).intValue();
+			containers[packedNumber] = number;
+			indexes[packedNumber] = i;
+			offsets.writeText(packedNumber + " " + body.size() + " ");
+			this.writeContent(this.objects.get(packedNumber - 1), body, false);
+			body.write('\n');
+		}
+		int first = offsets.size();
+		offsets.write(body.toByteArray());
+		byte[] data = this.deflate(offsets.toByteArray());
+		Tokens tokens = new Tokens();
+		tokens.writeText(number + " 0 obj\n<</Type/ObjStm/N " + packed.size() + "/First " + first + "/Filter/FlateDecode/Length " + data.length + ">>stream\n");
+		tokens.writeTo(os);
+		os.write(data);
+		os.write("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private void writeStream(COSStream stream, Tokens tokens, OutputStream os) throws IOException
+	{
+		byte[] data = this.compressed.remove(stream);
+		if (Objects.isNull(data))
+		{
+			data = this.streamData(stream);
+		}
+		this.writeStreamDictionary(stream, data.length, tokens, false);
+		tokens.writeText("stream\n");
+		tokens.writeTo(os);
+		os.write(data);
+		os.write("\nendstream\nendobj\n".getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/*
+	 * The length is left out for the key (canonical), it is part of the
+	 * data digested.
+	 */
+	private boolean writeStreamDictionary(COSStream stream, int length, Tokens tokens, boolean canonical) throws IOException
+	{
+		tokens.writeText("<<");
+		for (Map.Entry<COSName, COSBase> entry : stream.entrySet())
+		{
+			if (!entry.getKey().equals(COSName.LENGTH))
+			{
+				entry.getKey().writePDF(tokens);
+				if (!this.writeValue(entry.getValue(), tokens, canonical))
+				{
+					return false;
+				}
+			}
+		}
+		if (Objects.isNull(stream.getItem(COSName.FILTER)))
+		{
+			tokens.writeText("/Filter/FlateDecode");
+		}
+		if (!canonical)
+		{
+			tokens.writeText("/Length " + length);
+		}
+		tokens.writeText(">>");
+		return true;
+	}
+
+	/*
+	 * The encoded data, compressed if the stream has no filter.
+	 */
+	private byte[] streamData(COSStream stream) throws IOException
+	{
+		ByteArrayOutputStream data = new ByteArrayOutputStream();
+		try (InputStream is = stream.createRawInputStream())
+		{
+			byte[] buffer = new byte[8192];
+			int read = 0;
+			while ((read = is.read(buffer)) != -1)
+			{
+				data.write(buffer, 0, read);
+			}
+		}
+		if (Objects.isNull(stream.getItem(COSName.FILTER)))
+		{
+			return this.deflate(data.toByteArray());
+		}
+		return data.toByteArray();
+	}
+
+	private byte[] deflate(byte[] bytes) throws IOException
+	{
+		this.deflater.reset();
+		ByteArrayOutputStream data = new ByteArrayOutputStream(bytes.length / 2 + 64);
+		try (DeflaterOutputStream dos = new DeflaterOutputStream(data, this.deflater, 8192))
+		{
+			dos.write(bytes);
+		}
+		return data.toByteArray();
+	}
+
+	/*
+	 * Writes an indirect object itself (not a reference to it). Written for
+	 * the key (canonical), the references are replaced by the keys of the
+	 * objects referred to; false if one of them has none.
+	 */
+	private boolean writeContent(COSBase object, Tokens tokens, boolean canonical) throws IOException
+	{
+		if (object instanceof COSDictionary)
+		{
+			tokens.writeText("<<");
+			for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) object).entrySet())
+			{
+				entry.getKey().writePDF(tokens);
+				if (!this.writeValue(entry.getValue(), tokens, canonical))
+				{
+					return false;
+				}
+			}
+			tokens.writeText(">>");
+		}
+		else if (object instanceof COSArray)
+		{
+			tokens.writeText("[");
+			for (COSBase item : (COSArray) object)
+			{
+				if (!this.writeValue(item, tokens, canonical))
+				{
+					return false;
+				}
+			}
+			tokens.writeText("]");
+		}
+		else if (object instanceof COSString)
+		{
+			COSWriter.writeString((COSString) object, tokens);
+		}
+		else if (object instanceof COSName)
+		{
+			((COSName) object).writePDF(tokens);
+		}
+		else if (object instanceof COSInteger)
+		{
+			tokens.separate();
+			((COSInteger) object).writePDF(tokens);
+		}
+		else if (object instanceof COSFloat)
+		{
+			tokens.separate();
+			((COSFloat) object).writePDF(tokens);
+		}
+		else if (object instanceof COSBoolean)
+		{
+			tokens.separate();
+			((COSBoolean) object).writePDF(tokens);
+		}
+		else
+		{
+			tokens.separate();
+			COSNull.NULL.writePDF(tokens);
+		}
+		return true;
+	}
+
+	private boolean writeValue(COSBase value, Tokens tokens, boolean canonical) throws IOException
+	{
+		COSBase object = resolve(value);
+		if (!isIndirect(value) || Objects.isNull(object))
+		{
+			return this.writeContent(object, tokens, canonical);
+		}
+		if (canonical)
+		{
+			ByteBuffer key = this.contentKey(object);
+			if (key == NO_KEY)
+			{
+				return false;
+			}
+			tokens.write('#');
+			tokens.write(key.array());
+			return true;
+		}
+		tokens.separate();
+		tokens.writeText(this.numbers.get(object) + " 0 R");
+		return true;
+	}
+
+	private static void writeEntry(ByteArrayOutputStream entries, int type, long field, int width, int generation)
+	{
+		entries.write(type);
+		for (int shift = 8 * (width - 1); shift >= 0; shift -= 8)
+		{
+			entries.write((int) (field >>> shift));
+		}
+		entries.write(generation >>> 8);
+		entries.write(generation);
+	}
+
+	/*
+	 * Collects the tokens of an object and puts a space between two tokens
+	 * only where the second would otherwise continue the first.
+	 */
+	private static final class Tokens extends ByteArrayOutputStream
+	{
+		void separate()
+		{
+			if (this.count > 0 && "()<>[]{}/% \n".indexOf(this.buf[this.count - 1]) < 0)
+			{
+				this.write(' ');
+			}
+		}
+
+		void writeText(String text) throws IOException
+		{
+			this.write(text.getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	private static final class CountingOutputStream extends OutputStream
+	{
+		private final OutputStream os;
+
+		private long count = 0;
+
+		private CountingOutputStream(OutputStream os)
+		{
+			this.os = os;
+		}
+
+		long getCount()
+		{
+			return this.count;
+		}
+
+		@Override
+		public void write(int b) throws IOException
+		{
+			this.os.write(b);
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException
+		{
+			this.os.write(b, off, len);
+			this.count += len;
+		}
+
+		@Override
+		public void flush() throws IOException
+		{
+			this.os.flush();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package ch.eugster.swissqrbill;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/*
+ * Wraps the stream of the caller while a document is written to it. It
+ * counts (and optionally hashes) the written bytes and does not close the
+ * underlying stream, which stays under the control of the caller.
+ */
+final class DocumentOutputStream extends FilterOutputStream
+{
+	private final MessageDigest digest;
+
+	private long size = 0L;
+
+	DocumentOutputStream(OutputStream os, String hashAlgorithm)
+	{
+		super(os);
+		try
+		{
+			this.digest = Objects.isNull(hashAlgorithm) ? null : MessageDigest.getInstance(hashAlgorithm);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		this.out.write(b);
+		if (!Objects.isNull(this.digest))
+		{
+			this.digest.update((byte) b);
+		}
+		this.size++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		this.out.write(b, off, len);
+		if (!Objects.isNull(this.digest))
+		{
+			this.digest.update(b, off, len);
+		}
+		this.size += len;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.flush();
+	}
+
+	long getSize()
+	{
+		return this.size;
+	}
+
+	byte[] getHash()
+	{
+		return Objects.isNull(this.digest) ? null : this.digest.digest();
+	}
+}
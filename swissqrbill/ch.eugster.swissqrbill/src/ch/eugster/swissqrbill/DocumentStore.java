@@ -0,0 +1,229 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+import net.codecrete.qrbill.generator.Address;
+import net.codecrete.qrbill.generator.AlternativeScheme;
+import net.codecrete.qrbill.generator.Bill;
+import net.codecrete.qrbill.generator.BillFormat;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+
+/*
+ * Documents generated before, stored on disk under a hash of the
+ * normalized request, so a repeated request (e.g. a retry) copies or links
+ * the stored document to path.output instead of rendering it again. The
+ * rendering is deterministic (see ReproduciblePDF), so the stored document
+ * is the one rendering would write. The key is taken from the mapped bill
+ * and the parameters that change the document, not from the json, so
+ * field order, defaults and the target path do not matter.
+ *
+ * Entries are written to a temporary file and moved into place, so
+ * generators sharing the directory, also in other processes, only see
+ * complete documents. Nothing is ever removed; the directory can be
+ * cleared at any time.
+ */
+final class DocumentStore
+{
+	/*
+	 * Part of every key; to be raised when a change renders the same bill
+	 * differently, so the documents stored before are no longer found.
+	 */
+	private static final String VERSION = "1";
+
+	private final Path directory;
+
+	private final boolean link;
+
+	DocumentStore(Path directory, boolean link)
+	{
+		this.directory = directory;
+		this.link = link;
+	}
+
+	/*
+	 * Null if the document is not stored: INCREMENTAL may write into the
+	 * invoice itself. An invoice is identified by its path, size and time of
+	 * last modification, so an invoice that changed is rendered again.
+	 */
+	String key(PreparedBill prepared) throws IOException
+	{
+		if (!Objects.isNull(prepared.getInvoice()) && prepared.getAppendMode() == AppendMode.INCREMENTAL)
+		{
+			return null;
+		}
+		Key key = new Key();
+		key.add(VERSION);
+		Bill bill = prepared.getBill();
+		BillFormat format = bill.getFormat();
+		key.add(format.getGraphicsFormat()).add(format.getOutputSize()).add(format.getLanguage()).add(format.getSeparatorType()).add(format.getFontFamily()).add(format.getResolution()).add(format.getMarginLeft()).add(format.getMarginRight());
+		key.add(prepared.getCompressionLevel()).add(prepared.isCompact());
+		key.add(bill.getVersion()).add(bill.getAmount()).add(bill.getCurrency()).add(bill.getAccount()).add(bill.getReferenceType()).add(bill.getReference()).add(bill.getUnstructuredMessage()).add(bill.getBillInformation());
+		key.add(bill.getCreditor()).add(bill.getDebtor());
+		AlternativeScheme[] schemes = bill.getAlternativeSchemes();
+		key.add(Objects.isNull(schemes) ? 0 : schemes.length);
+		if (!Objects.isNull(schemes))
+		{
+			for (AlternativeScheme scheme : schemes)
+			{
+				key.add(scheme.getName()).add(scheme.getInstruction());
+			}
+		}
+		Path invoice = prepared.getInvoice();
+		if (!Objects.isNull(invoice))
+		{
+			key.add(prepared.getAppendMode()).add(invoice.toAbsolutePath()).add(Files.size(invoice)).add(Files.getLastModifiedTime(invoice).toMillis());
+		}
+		return key.toString();
+	}
+
+	/*
+	 * The stored document, null if there is none.
+	 */
+	Path find(String key, GraphicsFormat graphicsFormat)
+	{
+		Path entry = this.entry(key, graphicsFormat);
+		return Files.isRegularFile(entry) ? entry : null;
+	}
+
+	void put(String key, GraphicsFormat graphicsFormat, byte[] document) throws IOException
+	{
+		Path temp = this.createTempFile(key, graphicsFormat);
+		try
+		{
+			Files.write(temp, document);
+			this.moveIntoPlace(temp, this.entry(key, graphicsFormat));
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	void put(String key, GraphicsFormat graphicsFormat, Path document) throws IOException
+	{
+		Path temp = this.createTempFile(key, graphicsFormat);
+		try
+		{
+			Files.copy(document, temp, StandardCopyOption.REPLACE_EXISTING);
+			this.moveIntoPlace(temp, this.entry(key, graphicsFormat));
+		}
+		finally
+		{
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/*
+	 * Replaces the target by a hard link to the entry if links are enabled
+	 * and the file system supports them, by a copy otherwise. A linked
+	 * target shares its bytes with the entry and must not be changed in
+	 * place by others; the generator replaces its targets, and copies a
+	 * linked invoice before appending to it with INCREMENTAL.
+	 */
+	void copy(Path entry, Path target) throws IOException
+	{
+		Files.deleteIfExists(target);
+		if (this.link)
+		{
+			try
+			{
+				Files.createLink(target, entry);
+				return;
+			}
+			catch (IOException | UnsupportedOperationException e)
+			{
+				/*
+				 * Another file system, or no hard links on this one.
+				 */
+			}
+		}
+		Files.copy(entry, target);
+	}
+
+	private Path entry(String key, GraphicsFormat graphicsFormat)
+	{
+		return this.directory.resolve(key.substring(0, 2)).resolve(key + "." + graphicsFormat.name().toLowerCase());
+	}
+
+	private Path createTempFile(String key, GraphicsFormat graphicsFormat) throws IOException
+	{
+		Path directory = this.entry(key, graphicsFormat).getParent();
+		OutputDirectories.create(directory.toFile());
+		return Files.createTempFile(directory, key, ".tmp");
+	}
+
+	private void moveIntoPlace(Path temp, Path entry) throws IOException
+	{
+		try
+		{
+			Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/*
+	 * SHA-256 of the values, each preceded by its length, so no two lists
+	 * of values give the same input.
+	 */
+	private static final class Key
+	{
+		private final MessageDigest digest;
+
+		private Key()
+		{
+			try
+			{
+				this.digest = MessageDigest.getInstance("SHA-256");
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private Key add(Object value)
+		{
+			if (Objects.isNull(value))
+			{
+				this.digest.update((byte) 0);
+				return this;
+			}
+			byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+			this.digest.update((byte) 1);
+			this.digest.update(new byte[] { (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length });
+			this.digest.update(bytes);
+			return this;
+		}
+
+		private Key add(Address address)
+		{
+			if (Objects.isNull(address))
+			{
+				return this.add((Object) null);
+			}
+			return this.add(address.getType()).add(address.getName()).add(address.getAddressLine1()).add(address.getAddressLine2()).add(address.getStreet()).add(address.getHouseNo()).add(address.getPostalCode()).add(address.getTown()).add(address.getCountryCode());
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder key = new StringBuilder();
+			for (byte b : this.digest.digest())
+			{
+				key.append(Character.forDigit((b >>> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return key.toString();
+		}
+	}
+}
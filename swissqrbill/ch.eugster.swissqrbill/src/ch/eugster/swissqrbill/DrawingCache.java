@@ -0,0 +1,119 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.codecrete.qrbill.canvas.Canvas;
+import net.codecrete.qrbill.generator.Bill;
+import net.codecrete.qrbill.generator.BillFormat;
+import net.codecrete.qrbill.generator.QRBill;
+
+/*
+ * Bounded LRU cache of the drawing of bills, keyed by the Swiss Payments
+ * Code text of the bill and its format. Everything printed on a bill is
+ * contained in that text, so bills with the same key look the same. The
+ * qrbill library encodes the QR code within QRBill.draw, therefore a hit
+ * replays the recorded operations instead of drawing the bill again, which
+ * skips the QR code encoding (and the layout). A capacity of 0 disables
+ * the cache.
+ */
+final class DrawingCache
+{
+	private final int capacity;
+
+	private final Map<Key, List<RecordingCanvas.Operation>> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	DrawingCache(int capacity)
+	{
+		this.capacity = capacity;
+		this.entries = new LinkedHashMap<Key, List<RecordingCanvas.Operation>>(16, 0.75f, true)
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, List<RecordingCanvas.Operation>> eldest)
+			{
+				return this.size() > DrawingCache.this.capacity;
+			}
+		};
+	}
+
+	void draw(Bill bill, Canvas canvas) throws IOException
+	{
+		if (this.capacity == 0)
+		{
+			QRBill.draw(bill, canvas);
+			return;
+		}
+		Key key = new Key(QRBill.encodeQrCodeText(bill), bill.getFormat());
+		List<RecordingCanvas.Operation> operations = null;
+		synchronized (this.entries)
+		{
+			operations = this.entries.get(key);
+		}
+		if (Objects.isNull(operations))
+		{
+			this.misses.incrementAndGet();
+			RecordingCanvas recorder = new RecordingCanvas(FontCache.getFontMetrics(bill.getFormat().getGraphicsFormat(), bill.getFormat().getFontFamily()));
+			QRBill.draw(bill, recorder);
+			operations = recorder.getOperations();
+			synchronized (this.entries)
+			{
+				this.entries.put(key, operations);
+			}
+		}
+		else
+		{
+			this.hits.incrementAndGet();
+		}
+		RecordingCanvas.replay(operations, canvas);
+	}
+
+	long getHits()
+	{
+		return this.hits.get();
+	}
+
+	long getMisses()
+	{
+		return this.misses.get();
+	}
+
+	private static final class Key
+	{
+		private final String text;
+
+		private final BillFormat format;
+
+		private Key(String text, BillFormat format)
+		{
+			this.text = text;
+			this.format = new BillFormat(format);
+		}
+
+		@Override
+		public boolean equals(Object object)
+		{
+			if (!(object instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key) object;
+			return this.text.equals(other.text) && this.format.equals(other.format);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * this.text.hashCode() + this.format.hashCode();
+		}
+	}
+}
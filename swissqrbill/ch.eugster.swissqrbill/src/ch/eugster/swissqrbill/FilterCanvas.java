@@ -0,0 +1,129 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+
+import net.codecrete.qrbill.canvas.Canvas;
+
+/*
+ * Passes all operations on to another canvas. Subclasses override the
+ * operations they want to change.
+ */
+class FilterCanvas implements Canvas
+{
+	protected final Canvas canvas;
+
+	FilterCanvas(Canvas canvas)
+	{
+		this.canvas = canvas;
+	}
+
+	@Override
+	public void setTransformation(double translateX, double translateY, double rotate, double scaleX, double scaleY) throws IOException
+	{
+		this.canvas.setTransformation(translateX, translateY, rotate, scaleX, scaleY);
+	}
+
+	@Override
+	public void putText(String text, double x, double y, int fontSize, boolean isBold) throws IOException
+	{
+		this.canvas.putText(text, x, y, fontSize, isBold);
+	}
+
+	@Override
+	public void putTextLines(String[] lines, double x, double y, int fontSize, double leading) throws IOException
+	{
+		this.canvas.putTextLines(lines, x, y, fontSize, leading);
+	}
+
+	@Override
+	public void startPath() throws IOException
+	{
+		this.canvas.startPath();
+	}
+
+	@Override
+	public void moveTo(double x, double y) throws IOException
+	{
+		this.canvas.moveTo(x, y);
+	}
+
+	@Override
+	public void lineTo(double x, double y) throws IOException
+	{
+		this.canvas.lineTo(x, y);
+	}
+
+	@Override
+	public void cubicCurveTo(double x1, double y1, double x2, double y2, double x, double y) throws IOException
+	{
+		this.canvas.cubicCurveTo(x1, y1, x2, y2, x, y);
+	}
+
+	@Override
+	public void addRectangle(double x, double y, double width, double height) throws IOException
+	{
+		this.canvas.addRectangle(x, y, width, height);
+	}
+
+	@Override
+	public void closeSubpath() throws IOException
+	{
+		this.canvas.closeSubpath();
+	}
+
+	@Override
+	public void fillPath(int color) throws IOException
+	{
+		this.canvas.fillPath(color);
+	}
+
+	@Override
+	public void strokePath(double strokeWidth, int color) throws IOException
+	{
+		this.canvas.strokePath(strokeWidth, color);
+	}
+
+	@Override
+	public void strokePath(double strokeWidth, int color, LineStyle lineStyle) throws IOException
+	{
+		this.canvas.strokePath(strokeWidth, color, lineStyle);
+	}
+
+	@Override
+	public double getAscender(int fontSize)
+	{
+		return this.canvas.getAscender(fontSize);
+	}
+
+	@Override
+	public double getDescender(int fontSize)
+	{
+		return this.canvas.getDescender(fontSize);
+	}
+
+	@Override
+	public double getLineHeight(int fontSize)
+	{
+		return this.canvas.getLineHeight(fontSize);
+	}
+
+	@Override
+	public double getTextWidth(CharSequence text, int fontSize, boolean isBold)
+	{
+		return this.canvas.getTextWidth(text, fontSize, isBold);
+	}
+
+	@Override
+	public String[] splitLines(String text, double maxLength, int fontSize)
+	{
+		return this.canvas.splitLines(text, maxLength, fontSize);
+	}
+
+	/*
+	 * The underlying canvas is owned by the caller and is not closed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+	}
+}
@@ -0,0 +1,76 @@
+package ch.eugster.swissqrbill;
+
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+
+import net.codecrete.qrbill.canvas.FontMetrics;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+
+/*
+ * Process wide cache of the font resources used for rendering. The glyph
+ * metrics are immutable and shared by all renders, keyed by output format
+ * and font family. PDF always uses the standard Helvetica font, regardless
+ * of the requested family, like PDFCanvas does.
+ *
+ * The expensive part of font handling is the one-time initialization of
+ * the font programs: PDFBox parses the standard 14 fonts and scans the
+ * system fonts on first use, AWT looks up and loads the font files for
+ * PNG. warmUp() does this ahead of time instead of within the first
+ * request.
+ */
+final class FontCache
+{
+	static final String PDF_FONT = "Helvetica";
+
+	static final String DEFAULT_FONT = "Arial";
+
+	private static final ConcurrentMap<String, FontMetrics> METRICS = new ConcurrentHashMap<String, FontMetrics>();
+
+	private FontCache()
+	{
+	}
+
+	static FontMetrics getFontMetrics(GraphicsFormat graphicsFormat, String fontFamilyList)
+	{
+		String family = graphicsFormat == GraphicsFormat.PDF ? PDF_FONT : fontFamilyList;
+		return METRICS.computeIfAbsent(graphicsFormat.name() + ":" + family, key -> new FontMetrics(family));
+	}
+
+	static void warmUp(String fontFamilyList)
+	{
+		for (GraphicsFormat graphicsFormat : GraphicsFormat.values())
+		{
+			getFontMetrics(graphicsFormat, fontFamilyList);
+		}
+		try
+		{
+			PDType1Font.HELVETICA.getStringWidth("QR");
+			PDType1Font.HELVETICA_BOLD.getStringWidth("QR");
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		String family = getFontMetrics(GraphicsFormat.PNG, fontFamilyList).getFirstFontFamily();
+		BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = image.createGraphics();
+		try
+		{
+			graphics.setFont(new Font(family, Font.PLAIN, 10));
+			graphics.drawString("QR", 0, 0);
+			graphics.setFont(new Font(family, Font.BOLD, 10));
+			graphics.drawString("QR", 0, 0);
+		}
+		finally
+		{
+			graphics.dispose();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.BinaryNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import net.codecrete.qrbill.generator.GraphicsFormat;
+import net.codecrete.qrbill.generator.OutputSize;
+
+/*
+ * Holds the state of a single generate call. A new context is created for
+ * every request, so the generator itself keeps no per-request state and can
+ * be shared between threads.
+ */
+final class GenerationContext
+{
+	private final ObjectMapper mapper;
+
+	private final ObjectNode targetNode;
+
+	private ArrayNode errorNode = null;
+
+	private final long[] timings = new long[Stage.values().length];
+
+	private long mark;
+
+	private boolean timingsEnabled = false;
+
+	private final long start;
+
+	private PreparedBill prepared = null;
+
+	private long bytesWritten = 0L;
+
+	private boolean dryRun = false;
+
+	GenerationContext(ObjectMapper mapper)
+	{
+		this.mapper = mapper;
+		this.targetNode = mapper.createObjectNode();
+		this.start = System.nanoTime();
+		this.mark = this.start;
+	}
+
+	ObjectNode getTargetNode()
+	{
+		return this.targetNode;
+	}
+
+	void addErrorNode(String key, String value)
+	{
+		if (Objects.isNull(this.errorNode))
+		{
+			this.errorNode = this.targetNode.putArray("errors");
+		}
+		this.errorNode.add(this.mapper.createObjectNode().put(key, value));
+	}
+
+	boolean hasErrors()
+	{
+		return !Objects.isNull(this.errorNode);
+	}
+
+	/*
+	 * Removes the document from the file node of the result and returns it,
+	 * null if the result holds none.
+	 */
+	byte[] removePayload()
+	{
+		JsonNode fileNode = this.targetNode.get("file");
+		if (Objects.isNull(fileNode) || !fileNode.isObject() || !fileNode.has("qrbill") || !fileNode.get("qrbill").isBinary())
+		{
+			return null;
+		}
+		return ((BinaryNode) ((ObjectNode) fileNode).remove("qrbill")).binaryValue();
+	}
+
+	void setPrepared(PreparedBill prepared)
+	{
+		this.prepared = prepared;
+	}
+
+	void setBytesWritten(long bytesWritten)
+	{
+		this.bytesWritten = bytesWritten;
+	}
+
+	/*
+	 * For calls without a prepared bill, i.e. print runs.
+	 */
+	void setDryRun(boolean dryRun)
+	{
+		this.dryRun = dryRun;
+	}
+
+	/*
+	 * Passes the outcome of the request on to the listener, if any.
+	 */
+	void report(MetricsListener listener)
+	{
+		if (Objects.isNull(listener) || (!Objects.isNull(this.prepared) && this.prepared.isDryRun()))
+		{
+			return;
+		}
+		boolean success = this.targetNode.has("result") && "OK".equals(this.targetNode.get("result").asText());
+		GraphicsFormat graphicsFormat = Objects.isNull(this.prepared) ? null : this.prepared.getGraphicsFormat();
+		OutputSize outputSize = Objects.isNull(this.prepared) ? null : this.prepared.getBill().getFormat().getOutputSize();
+		boolean appended = !Objects.isNull(this.prepared) && !Objects.isNull(this.prepared.getInvoice());
+		listener.billGenerated(success, graphicsFormat, outputSize, appended, success ? this.bytesWritten : 0L, System.nanoTime() - this.start);
+	}
+
+	/*
+	 * A print run is reported once, as a pdf without output size (the bills
+	 * may have different ones), with the size of the document and the
+	 * duration of the whole run.
+	 */
+	void reportPrintRun(MetricsListener listener)
+	{
+		if (Objects.isNull(listener) || this.dryRun)
+		{
+			return;
+		}
+		boolean success = this.targetNode.has("result") && "OK".equals(this.targetNode.get("result").asText());
+		listener.billGenerated(success, GraphicsFormat.PDF, null, false, success ? this.bytesWritten : 0L, System.nanoTime() - this.start);
+	}
+
+	void enableTimings()
+	{
+		this.timingsEnabled = true;
+	}
+
+	/*
+	 * Adds the time since the previous call (or since the context has been
+	 * created) to the given stage.
+	 */
+	void lap(Stage stage)
+	{
+		long now = System.nanoTime();
+		this.timings[stage.ordinal()] += now - this.mark;
+		this.mark = now;
+	}
+
+	/*
+	 * Returns the target node including the timings, if requested.
+	 */
+	ObjectNode getResultNode()
+	{
+		if (this.timingsEnabled)
+		{
+			this.lap(Stage.RESPONSE);
+			this.targetNode.set("timings", this.buildTimingsNode());
+		}
+		return this.targetNode;
+	}
+
+	/*
+	 * The timings are appended after the target node has been serialized,
+	 * so 'response' includes the serialization (e.g. the base64 encoding of
+	 * the payload).
+	 */
+	String toJson()
+	{
+		String json = this.targetNode.toString();
+		if (!this.timingsEnabled)
+		{
+			return json;
+		}
+		this.lap(Stage.RESPONSE);
+		return json.substring(0, json.length() - 1) + (this.targetNode.size() == 0 ? "" : ",") + "\"timings\":" + this.buildTimingsNode().toString() + "}";
+	}
+
+	/*
+	 * Writes what toJson() returns to the generator. A binary node (the
+	 * payload) is base64 encoded into the buffer of the generator, which is
+	 * flushed whenever it is full, so it never exists as a whole text.
+	 */
+	void writeJson(JsonGenerator generator) throws IOException
+	{
+		ObjectWriter writer = this.mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+		generator.writeStartObject();
+		Iterator<Map.Entry<String, JsonNode>> fields = this.targetNode.fields();
+		while (fields.hasNext())
+		{
+			Map.Entry<String, JsonNode> field = fields.next();
+			generator.writeFieldName(field.getKey());
+			writer.writeValue(generator, field.getValue());
+		}
+		if (this.timingsEnabled)
+		{
+			this.lap(Stage.RESPONSE);
+			generator.writeFieldName("timings");
+			writer.writeValue(generator, this.buildTimingsNode());
+		}
+		generator.writeEndObject();
+		generator.flush();
+	}
+
+	private ObjectNode buildTimingsNode()
+	{
+		ObjectNode timingsNode = this.mapper.createObjectNode();
+		for (Stage stage : Stage.values())
+		{
+			timingsNode.put(stage.getKey(), this.timings[stage.ordinal()]);
+		}
+		return timingsNode;
+	}
+}
@@ -0,0 +1,265 @@
+package ch.eugster.swissqrbill;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import net.codecrete.qrbill.generator.GraphicsFormat;
+import net.codecrete.qrbill.generator.OutputSize;
+
+/*
+ * MetricsListener publishing counters and a latency histogram as MXBean
+ * on the platform MBean server, to be watched with jconsole or VisualVM.
+ * The latencies are counted in buckets doubling in size from 1 ms up to
+ * about 65 s, so recording is a few atomic increments and the memory used
+ * is fixed.
+ */
+public class JmxMetrics implements MetricsListener, JmxMetricsMXBean
+{
+	private static final String UNKNOWN = "UNKNOWN";
+
+	private static final int BUCKETS = 18;
+
+	private final ObjectName objectName;
+
+	private final LongAdder successCount = new LongAdder();
+
+	private final LongAdder errorCount = new LongAdder();
+
+	private final LongAdder bytesWritten = new LongAdder();
+
+	private final LongAdder appendedCount = new LongAdder();
+
+	private final LongAdder standaloneCount = new LongAdder();
+
+	private final ConcurrentMap<String, LongAdder> graphicsFormatCounts = new ConcurrentHashMap<String, LongAdder>();
+
+	private final ConcurrentMap<String, LongAdder> outputSizeCounts = new ConcurrentHashMap<String, LongAdder>();
+
+	private final AtomicLongArray latencyBuckets = new AtomicLongArray(BUCKETS);
+
+	private final LongAdder latencyTotal = new LongAdder();
+
+	private final AtomicLong latencyMax = new AtomicLong();
+
+	private JmxMetrics(ObjectName objectName)
+	{
+		this.objectName = objectName;
+	}
+
+	/*
+	 * Creates the metrics and registers them under
+	 * ch.eugster.swissqrbill:type=JmxMetrics,name=<name>.
+	 */
+	public static JmxMetrics register(String name)
+	{
+		try
+		{
+			JmxMetrics metrics = new JmxMetrics(new ObjectName("ch.eugster.swissqrbill:type=JmxMetrics,name=" + ObjectName.quote(name)));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metrics.objectName);
+			return metrics;
+		}
+		catch (JMException e)
+		{
+			throw new IllegalStateException("metrics '" + name + "' cannot be registered", e);
+		}
+	}
+
+	public void unregister()
+	{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			if (server.isRegistered(this.objectName))
+			{
+				server.unregisterMBean(this.objectName);
+			}
+		}
+		catch (JMException e)
+		{
+			throw new IllegalStateException("metrics '" + this.objectName + "' cannot be unregistered", e);
+		}
+	}
+
+	public ObjectName getObjectName()
+	{
+		return this.objectName;
+	}
+
+	@Override
+	public void billGenerated(boolean success, GraphicsFormat graphicsFormat, OutputSize outputSize, boolean appended, long bytesWritten, long nanos)
+	{
+		(success ? this.successCount : this.errorCount).increment();
+		this.bytesWritten.add(bytesWritten);
+		(appended ? this.appendedCount : this.standaloneCount).increment();
+		this.graphicsFormatCounts.computeIfAbsent(Objects.isNull(graphicsFormat) ? UNKNOWN : graphicsFormat.name(), key -> new LongAdder()).increment();
+		this.outputSizeCounts.computeIfAbsent(Objects.isNull(outputSize) ? UNKNOWN : outputSize.name(), key -> new LongAdder()).increment();
+		this.latencyBuckets.incrementAndGet(bucket(nanos));
+		this.latencyTotal.add(nanos);
+		this.latencyMax.accumulateAndGet(nanos, Math::max);
+	}
+
+	/*
+	 * Bucket i holds latencies up to 2^i ms, the last bucket all above.
+	 */
+	private static int bucket(long nanos)
+	{
+		long millis = (nanos + 999999L) / 1000000L;
+		int bucket = millis <= 1L ? 0 : 64 - Long.numberOfLeadingZeros(millis - 1L);
+		return Math.min(bucket, BUCKETS - 1);
+	}
+
+	private static String bucketLabel(int bucket)
+	{
+		return bucket == BUCKETS - 1 ? ">" + (1L << (bucket - 1)) + "ms" : "<=" + (1L << bucket) + "ms";
+	}
+
+	@Override
+	public long getSuccessCount()
+	{
+		return this.successCount.sum();
+	}
+
+	@Override
+	public long getErrorCount()
+	{
+		return this.errorCount.sum();
+	}
+
+	@Override
+	public long getBytesWritten()
+	{
+		return this.bytesWritten.sum();
+	}
+
+	@Override
+	public Map<String, Long> getCountByGraphicsFormat()
+	{
+		return toMap(this.graphicsFormatCounts);
+	}
+
+	@Override
+	public Map<String, Long> getCountByOutputSize()
+	{
+		return toMap(this.outputSizeCounts);
+	}
+
+	@Override
+	public long getAppendedCount()
+	{
+		return this.appendedCount.sum();
+	}
+
+	@Override
+	public long getStandaloneCount()
+	{
+		return this.standaloneCount.sum();
+	}
+
+	@Override
+	public Map<String, Long> getLatencyHistogram()
+	{
+		Map<String, Long> histogram = new LinkedHashMap<String, Long>();
+		for (int bucket = 0; bucket < BUCKETS; bucket++)
+		{
+			histogram.put(bucketLabel(bucket), Long.valueOf(this.latencyBuckets.get(bucket)));
+		}
+		return histogram;
+	}
+
+	@Override
+	public double getLatencyMean()
+	{
+		long count = this.getSuccessCount() + this.getErrorCount();
+		return count == 0L ? 0D : this.latencyTotal.sum() / 1000000D / count;
+	}
+
+	@Override
+	public double getLatencyP50()
+	{
+		return this.percentile(0.5D);
+	}
+
+	@Override
+	public double getLatencyP90()
+	{
+		return this.percentile(0.9D);
+	}
+
+	@Override
+	public double getLatencyP99()
+	{
+		return this.percentile(0.99D);
+	}
+
+	@Override
+	public double getLatencyMax()
+	{
+		return this.latencyMax.get() / 1000000D;
+	}
+
+	/*
+	 * The upper bound of the bucket containing the percentile, or the
+	 * maximum for the last bucket.
+	 */
+	private double percentile(double percentile)
+	{
+		long[] counts = new long[BUCKETS];
+		long total = 0L;
+		for (int bucket = 0; bucket < BUCKETS; bucket++)
+		{
+			counts[bucket] = this.latencyBuckets.get(bucket);
+			total += counts[bucket];
+		}
+		if (total == 0L)
+		{
+			return 0D;
+		}
+		long rank = (long) Math.ceil(percentile * total);
+		long seen = 0L;
+		for (int bucket = 0; bucket < BUCKETS - 1; bucket++)
+		{
+			seen += counts[bucket];
+			if (seen >= rank)
+			{
+				return Math.min(1L << bucket, this.getLatencyMax());
+			}
+		}
+		return this.getLatencyMax();
+	}
+
+	@Override
+	public void reset()
+	{
+		this.successCount.reset();
+		this.errorCount.reset();
+		this.bytesWritten.reset();
+		this.appendedCount.reset();
+		this.standaloneCount.reset();
+		this.graphicsFormatCounts.clear();
+		this.outputSizeCounts.clear();
+		for (int bucket = 0; bucket < BUCKETS; bucket++)
+		{
+			this.latencyBuckets.set(bucket, 0L);
+		}
+		this.latencyTotal.reset();
+		this.latencyMax.set(0L);
+	}
+
+	private static Map<String, Long> toMap(ConcurrentMap<String, LongAdder> counts)
+	{
+		Map<String, Long> map = new LinkedHashMap<String, Long>();
+		counts.forEach((key, count) -> map.put(key, Long.valueOf(count.sum())));
+		return map;
+	}
+}
@@ -0,0 +1,38 @@
+package ch.eugster.swissqrbill;
+
+import java.util.Map;
+
+/*
+ * The attributes JmxMetrics publishes. Durations are in milliseconds, the
+ * percentiles are the upper bounds of the histogram buckets they fall in.
+ */
+public interface JmxMetricsMXBean
+{
+	long getSuccessCount();
+
+	long getErrorCount();
+
+	long getBytesWritten();
+
+	Map<String, Long> getCountByGraphicsFormat();
+
+	Map<String, Long> getCountByOutputSize();
+
+	long getAppendedCount();
+
+	long getStandaloneCount();
+
+	Map<String, Long> getLatencyHistogram();
+
+	double getLatencyMean();
+
+	double getLatencyP50();
+
+	double getLatencyP90();
+
+	double getLatencyP99();
+
+	double getLatencyMax();
+
+	void reset();
+}
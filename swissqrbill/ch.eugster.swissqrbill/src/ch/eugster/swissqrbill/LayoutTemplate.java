@@ -0,0 +1,126 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.codecrete.qrbill.canvas.Canvas;
+import net.codecrete.qrbill.canvas.FontMetrics;
+import net.codecrete.qrbill.generator.BillFormat;
+import net.codecrete.qrbill.generator.MultilingualText;
+import net.codecrete.qrbill.generator.OutputSize;
+import net.codecrete.qrbill.generator.QRBill;
+import net.codecrete.qrbill.generator.SeparatorType;
+
+/*
+ * The part of a bill that is the same for every bill of a format
+ * (language, output size, graphics format, separators, font and margins):
+ * the separators with the scissors, the titles of the receipt and the
+ * payment part and the acceptance point. All other labels move with the
+ * data of the bill. Templates are created once per format and shared
+ * process wide.
+ *
+ * A bill drawn through exclude(canvas) with SeparatorType.NONE leaves out
+ * exactly what the template contains, so drawing the template and the
+ * bill gives the same result as drawing the bill alone.
+ */
+final class LayoutTemplate
+{
+	private static final ConcurrentMap<BillFormat, LayoutTemplate> TEMPLATES = new ConcurrentHashMap<BillFormat, LayoutTemplate>();
+
+	private final Set<String> texts;
+
+	private final List<RecordingCanvas.Operation> operations;
+
+	private LayoutTemplate(Set<String> texts, List<RecordingCanvas.Operation> operations)
+	{
+		this.texts = texts;
+		this.operations = operations;
+	}
+
+	/*
+	 * Returns null for QR_CODE_ONLY, which has no layout.
+	 */
+	static LayoutTemplate get(BillFormat format)
+	{
+		if (format.getOutputSize() == OutputSize.QR_CODE_ONLY)
+		{
+			return null;
+		}
+		return TEMPLATES.computeIfAbsent(new BillFormat(format), LayoutTemplate::create);
+	}
+
+	private static LayoutTemplate create(BillFormat format)
+	{
+		Set<String> texts = new HashSet<String>(Arrays.asList(MultilingualText.getText(MultilingualText.KEY_RECEIPT, format.getLanguage()),
+				MultilingualText.getText(MultilingualText.KEY_PAYMENT_PART, format.getLanguage()),
+				MultilingualText.getText(MultilingualText.KEY_ACCEPTANCE_POINT, format.getLanguage())));
+		FontMetrics fontMetrics = FontCache.getFontMetrics(format.getGraphicsFormat(), format.getFontFamily());
+		RecordingCanvas recorder = new RecordingCanvas(fontMetrics);
+		if (format.getSeparatorType() != SeparatorType.NONE)
+		{
+			QRBill.drawSeparators(format.getSeparatorType(), format.getOutputSize() != OutputSize.QR_BILL_ONLY, recorder);
+		}
+		BillFormat sampleFormat = new BillFormat(format);
+		sampleFormat.setSeparatorType(SeparatorType.NONE);
+		QRBill.draw(SampleBill.create(sampleFormat), new Exclusion(new RecordingCanvas(fontMetrics), texts, recorder));
+		return new LayoutTemplate(texts, recorder.getOperations());
+	}
+
+	void draw(Canvas canvas) throws IOException
+	{
+		RecordingCanvas.replay(this.operations, canvas);
+	}
+
+	/*
+	 * Wraps the canvas a bill is drawn onto, so the texts contained in the
+	 * template are left out. The separators are left out by drawing the
+	 * bill with SeparatorType.NONE.
+	 */
+	Canvas exclude(Canvas canvas)
+	{
+		return new Exclusion(canvas, this.texts, null);
+	}
+
+	private static final class Exclusion extends FilterCanvas
+	{
+		private final Set<String> texts;
+
+		private final Canvas excluded;
+
+		private double[] transformation = new double[] { 0, 0, 0, 1, 1 };
+
+		private Exclusion(Canvas canvas, Set<String> texts, Canvas excluded)
+		{
+			super(canvas);
+			this.texts = texts;
+			this.excluded = excluded;
+		}
+
+		@Override
+		public void setTransformation(double translateX, double translateY, double rotate, double scaleX, double scaleY) throws IOException
+		{
+			this.transformation = new double[] { translateX, translateY, rotate, scaleX, scaleY };
+			super.setTransformation(translateX, translateY, rotate, scaleX, scaleY);
+		}
+
+		@Override
+		public void putText(String text, double x, double y, int fontSize, boolean isBold) throws IOException
+		{
+			if (!isBold || !this.texts.contains(text))
+			{
+				super.putText(text, x, y, fontSize, isBold);
+			}
+			else if (!Objects.isNull(this.excluded))
+			{
+				this.excluded.setTransformation(this.transformation[0], this.transformation[1], this.transformation[2], this.transformation[3], this.transformation[4]);
+				this.excluded.putText(text, x, y, fontSize, isBold);
+			}
+		}
+	}
+}
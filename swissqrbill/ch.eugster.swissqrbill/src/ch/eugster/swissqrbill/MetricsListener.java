@@ -0,0 +1,21 @@
+package ch.eugster.swissqrbill;
+
+import net.codecrete.qrbill.generator.GraphicsFormat;
+import net.codecrete.qrbill.generator.OutputSize;
+
+/*
+ * Is called by the generator for each bill of generate, generateBatch and
+ * generateStream, and once for each print run (with outputSize null), on
+ * the thread that generated the bill. Implementations
+ * must be thread safe, fast and must not throw.
+ */
+public interface MetricsListener
+{
+	/*
+	 * graphicsFormat and outputSize are null if the request could not be
+	 * read. appended is true if the bill has been appended to the document
+	 * in path.invoice. bytesWritten is the size of the written document (0
+	 * if none has been written), nanos the duration of the whole call.
+	 */
+	void billGenerated(boolean success, GraphicsFormat graphicsFormat, OutputSize outputSize, boolean appended, long bytesWritten, long nanos);
+}
@@ -0,0 +1,45 @@
+package ch.eugster.swissqrbill;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Drops the first offset bytes written and passes the rest on. An
+ * incremental update starts with a copy of the original document, which
+ * is left out this way when the update is appended to the document itself.
+ */
+final class OffsetOutputStream extends FilterOutputStream
+{
+	private long offset;
+
+	OffsetOutputStream(OutputStream os, long offset)
+	{
+		super(os);
+		this.offset = offset;
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if (this.offset > 0L)
+		{
+			this.offset--;
+		}
+		else
+		{
+			this.out.write(b);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException
+	{
+		int skip = (int) Math.min(this.offset, len);
+		this.offset -= skip;
+		if (len > skip)
+		{
+			this.out.write(b, off + skip, len - skip);
+		}
+	}
+}
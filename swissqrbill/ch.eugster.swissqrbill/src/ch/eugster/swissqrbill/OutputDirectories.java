@@ -0,0 +1,74 @@
+package ch.eugster.swissqrbill;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Creates the directories bills are written to and remembers them for the
+ * life of the process, so the file system is asked once per directory
+ * instead of once (or, with mkdirs, once per path element) per bill. A
+ * directory removed from outside is created again when a file is opened
+ * in it (see newOutputStream).
+ */
+final class OutputDirectories
+{
+	/*
+	 * Bounds the memory used; more than the 65536 directories of
+	 * OutputLayout.HASHED below one root.
+	 */
+	private static final int MAX_DIRECTORIES = 1 << 17;
+
+	private static final Set<File> DIRECTORIES = ConcurrentHashMap.newKeySet();
+
+	private OutputDirectories()
+	{
+	}
+
+	static void create(File directory)
+	{
+		Objects.requireNonNull(directory);
+		if (DIRECTORIES.contains(directory))
+		{
+			return;
+		}
+		if (directory.mkdirs() || directory.isDirectory())
+		{
+			if (DIRECTORIES.size() >= MAX_DIRECTORIES)
+			{
+				DIRECTORIES.clear();
+			}
+			DIRECTORIES.add(directory);
+		}
+	}
+
+	/*
+	 * Like Files.newOutputStream, but if the directory of the file was
+	 * removed after it was created, it is created again and the file opened
+	 * once more.
+	 */
+	static OutputStream newOutputStream(Path file) throws IOException
+	{
+		try
+		{
+			return Files.newOutputStream(file);
+		}
+		catch (NoSuchFileException e)
+		{
+			File directory = file.toFile().getParentFile();
+			if (Objects.isNull(directory))
+			{
+				throw e;
+			}
+			DIRECTORIES.remove(directory);
+			create(directory);
+			return Files.newOutputStream(file);
+		}
+	}
+}
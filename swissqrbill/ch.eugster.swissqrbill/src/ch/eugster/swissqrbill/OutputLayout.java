@@ -0,0 +1,68 @@
+package ch.eugster.swissqrbill;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.zip.CRC32;
+
+import net.codecrete.qrbill.generator.GraphicsFormat;
+
+/*
+ * How the bills written below path.output_root are spread over sub
+ * directories, so no directory grows without bound however many bills are
+ * generated. The file is named QRBill_<invoice>.<format> like the file in
+ * the result; characters other than letters, digits, '.', '_' and '-' in
+ * the invoice are replaced by '_'.
+ */
+enum OutputLayout
+{
+	/*
+	 * Two levels of 256 directories chosen by a hash of the invoice (e.g.
+	 * root/3f/a2/QRBill_4711.pdf): about 15 bills per directory for a
+	 * million, and a bill is always written to the same directory.
+	 */
+	HASHED
+	{
+		@Override
+		Path resolve(Path root, String invoice, LocalDate date)
+		{
+			CRC32 crc = new CRC32();
+			crc.update(invoice.getBytes(StandardCharsets.UTF_8));
+			int hash = (int) crc.getValue();
+			return root.resolve(hex(hash >>> 24)).resolve(hex(hash >>> 16));
+		}
+	},
+	/*
+	 * One directory per day of generation (e.g.
+	 * root/2026/10/18/QRBill_4711.pdf), easy to archive or purge by date.
+	 */
+	DATE
+	{
+		@Override
+		Path resolve(Path root, String invoice, LocalDate date)
+		{
+			return root.resolve(String.format("%04d", date.getYear())).resolve(String.format("%02d", date.getMonthValue())).resolve(String.format("%02d", date.getDayOfMonth()));
+		}
+	};
+
+	/*
+	 * The directory the bill is written to.
+	 */
+	abstract Path resolve(Path root, String invoice, LocalDate date);
+
+	static String fileName(String invoice, GraphicsFormat graphicsFormat)
+	{
+		StringBuilder name = new StringBuilder("QRBill_");
+		for (int i = 0; i < invoice.length(); i++)
+		{
+			char c = invoice.charAt(i);
+			name.append((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-' ? c : '_');
+		}
+		return name.append('.').append(graphicsFormat.name().toLowerCase()).toString();
+	}
+
+	private static String hex(int value)
+	{
+		return new String(new char[] { Character.forDigit((value >>> 4) & 0xf, 16), Character.forDigit(value & 0xf, 16) });
+	}
+}
@@ -0,0 +1,259 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+import org.apache.pdfbox.util.Matrix;
+
+import net.codecrete.qrbill.canvas.Canvas;
+import net.codecrete.qrbill.canvas.FontMetrics;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+
+/*
+ * Draws a bill onto a page of a document owned by the caller. Unlike
+ * PDFCanvas it neither loads nor saves the document, so the caller decides
+ * how the document is read (e.g. file backed with a memory budget) and
+ * where it is written to. The drawing follows PDFCanvas.
+ */
+final class PDFDocumentCanvas implements Canvas
+{
+	static final int LAST_PAGE = -1;
+
+	private static final double MM_TO_PT = 72 / 25.4;
+
+	private final FontMetrics fontMetrics = FontCache.getFontMetrics(GraphicsFormat.PDF, FontCache.PDF_FONT);
+
+	private PDPageContentStream contentStream;
+
+	private int lastStrokingColor = 0;
+
+	private int lastNonStrokingColor = 0;
+
+	private double lastLineWidth = 1;
+
+	private LineStyle lastLineStyle = LineStyle.Solid;
+
+	private boolean hasSavedGraphicsState = false;
+
+	PDFDocumentCanvas(PDDocument document, int pageNo) throws IOException
+	{
+		this(document, document.getPage(pageNo == LAST_PAGE ? document.getNumberOfPages() - 1 : pageNo));
+	}
+
+	PDFDocumentCanvas(PDDocument document, PDPage page) throws IOException
+	{
+		this(new PDPageContentStream(document, page, PDPageContentStream.AppendMode.APPEND, true, true));
+	}
+
+	/*
+	 * Draws into the given content stream, e.g. the one of a form xobject.
+	 */
+	PDFDocumentCanvas(PDPageContentStream contentStream)
+	{
+		this.contentStream = contentStream;
+	}
+
+	/*
+	 * Draws a form xobject in its own graphics state, so it does not
+	 * interfere with the transformations set up by the bill layout.
+	 */
+	void drawForm(PDFormXObject form) throws IOException
+	{
+		this.contentStream.saveGraphicsState();
+		this.contentStream.drawForm(form);
+		this.contentStream.restoreGraphicsState();
+	}
+
+	@Override
+	public void setTransformation(double translateX, double translateY, double rotate, double scaleX, double scaleY) throws IOException
+	{
+		if (this.hasSavedGraphicsState)
+		{
+			this.contentStream.restoreGraphicsState();
+			this.lastStrokingColor = 0;
+			this.lastNonStrokingColor = 0;
+			this.lastLineWidth = 1;
+			this.lastLineStyle = LineStyle.Solid;
+		}
+		this.contentStream.saveGraphicsState();
+		this.hasSavedGraphicsState = true;
+		Matrix matrix = new Matrix();
+		matrix.translate((float) (translateX * MM_TO_PT), (float) (translateY * MM_TO_PT));
+		if (rotate != 0)
+		{
+			matrix.rotate(rotate);
+		}
+		if (scaleX != 1 || scaleY != 1)
+		{
+			matrix.scale((float) scaleX, (float) scaleY);
+		}
+		this.contentStream.transform(matrix);
+	}
+
+	@Override
+	public void putText(String text, double x, double y, int fontSize, boolean isBold) throws IOException
+	{
+		this.contentStream.setFont(isBold ? PDType1Font.HELVETICA_BOLD : PDType1Font.HELVETICA, fontSize);
+		this.contentStream.beginText();
+		this.contentStream.newLineAtOffset((float) (x * MM_TO_PT), (float) (y * MM_TO_PT));
+		this.contentStream.showText(text);
+		this.contentStream.endText();
+	}
+
+	@Override
+	public void putTextLines(String[] lines, double x, double y, int fontSize, double leading) throws IOException
+	{
+		float lineHeight = (float) ((this.fontMetrics.getLineHeight(fontSize) + leading) * MM_TO_PT);
+		this.contentStream.setFont(PDType1Font.HELVETICA, fontSize);
+		this.contentStream.beginText();
+		this.contentStream.newLineAtOffset((float) (x * MM_TO_PT), (float) (y * MM_TO_PT));
+		boolean isFirstLine = true;
+		for (String line : lines)
+		{
+			if (isFirstLine)
+			{
+				isFirstLine = false;
+			}
+			else
+			{
+				this.contentStream.newLineAtOffset(0, -lineHeight);
+			}
+			this.contentStream.showText(line);
+		}
+		this.contentStream.endText();
+	}
+
+	@Override
+	public void startPath()
+	{
+		// the path is started implicitly
+	}
+
+	@Override
+	public void moveTo(double x, double y) throws IOException
+	{
+		this.contentStream.moveTo((float) (x * MM_TO_PT), (float) (y * MM_TO_PT));
+	}
+
+	@Override
+	public void lineTo(double x, double y) throws IOException
+	{
+		this.contentStream.lineTo((float) (x * MM_TO_PT), (float) (y * MM_TO_PT));
+	}
+
+	@Override
+	public void cubicCurveTo(double x1, double y1, double x2, double y2, double x, double y) throws IOException
+	{
+		this.contentStream.curveTo((float) (x1 * MM_TO_PT), (float) (y1 * MM_TO_PT), (float) (x2 * MM_TO_PT), (float) (y2 * MM_TO_PT), (float) (x * MM_TO_PT), (float) (y * MM_TO_PT));
+	}
+
+	@Override
+	public void addRectangle(double x, double y, double width, double height) throws IOException
+	{
+		this.contentStream.addRect((float) (x * MM_TO_PT), (float) (y * MM_TO_PT), (float) (width * MM_TO_PT), (float) (height * MM_TO_PT));
+	}
+
+	@Override
+	public void closeSubpath() throws IOException
+	{
+		this.contentStream.closePath();
+	}
+
+	@Override
+	public void fillPath(int color) throws IOException
+	{
+		if (color != this.lastNonStrokingColor)
+		{
+			this.lastNonStrokingColor = color;
+			this.contentStream.setNonStrokingColor(((color >> 16) & 0xff) / 255f, ((color >> 8) & 0xff) / 255f, (color & 0xff) / 255f);
+		}
+		this.contentStream.fill();
+	}
+
+	@Override
+	public void strokePath(double strokeWidth, int color) throws IOException
+	{
+		this.strokePath(strokeWidth, color, LineStyle.Solid);
+	}
+
+	@Override
+	public void strokePath(double strokeWidth, int color, LineStyle lineStyle) throws IOException
+	{
+		if (color != this.lastStrokingColor)
+		{
+			this.lastStrokingColor = color;
+			this.contentStream.setStrokingColor(((color >> 16) & 0xff) / 255f, ((color >> 8) & 0xff) / 255f, (color & 0xff) / 255f);
+		}
+		if (lineStyle != this.lastLineStyle || (lineStyle != LineStyle.Solid && strokeWidth != this.lastLineWidth))
+		{
+			this.lastLineStyle = lineStyle;
+			float[] pattern;
+			switch (lineStyle)
+			{
+				case Dashed:
+					pattern = new float[] { 4 * (float) strokeWidth };
+					break;
+				case Dotted:
+					pattern = new float[] { 0, 3 * (float) strokeWidth };
+					break;
+				default:
+					pattern = new float[] {};
+			}
+			this.contentStream.setLineCapStyle(lineStyle == LineStyle.Dotted ? 1 : 0);
+			this.contentStream.setLineDashPattern(pattern, 0);
+		}
+		if (strokeWidth != this.lastLineWidth)
+		{
+			this.lastLineWidth = strokeWidth;
+			this.contentStream.setLineWidth((float) strokeWidth);
+		}
+		this.contentStream.stroke();
+	}
+
+	@Override
+	public double getAscender(int fontSize)
+	{
+		return this.fontMetrics.getAscender(fontSize);
+	}
+
+	@Override
+	public double getDescender(int fontSize)
+	{
+		return this.fontMetrics.getDescender(fontSize);
+	}
+
+	@Override
+	public double getLineHeight(int fontSize)
+	{
+		return this.fontMetrics.getLineHeight(fontSize);
+	}
+
+	@Override
+	public double getTextWidth(CharSequence text, int fontSize, boolean isBold)
+	{
+		return this.fontMetrics.getTextWidth(text, fontSize, isBold);
+	}
+
+	@Override
+	public String[] splitLines(String text, double maxLength, int fontSize)
+	{
+		return this.fontMetrics.splitLines(text, maxLength, fontSize);
+	}
+
+	/*
+	 * Finishes the page content. The document stays open.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (this.contentStream != null)
+		{
+			this.contentStream.close();
+			this.contentStream = null;
+		}
+	}
+}
@@ -0,0 +1,405 @@
+package ch.eugster.swissqrbill;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import net.codecrete.qrbill.canvas.Canvas;
+import net.codecrete.qrbill.canvas.FontMetrics;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+
+/*
+ * Draws a bill like PNGCanvas into an 8 bit grayscale image and encodes it
+ * itself, with the deflate level given. Compared with PNGCanvas
+ *
+ * - the image and the Deflater are kept per thread and reused by the next
+ *   bill of the same size, instead of allocating some megabytes per bill,
+ * - paths made of axis parallel rectangles only (the QR code and the Swiss
+ *   cross) are filled directly into the raster, aligned to whole pixels,
+ *   instead of being rasterized as antialiased shapes,
+ * - fonts and glyph metrics are shared process wide.
+ *
+ * Everything else (text, lines, scissors) is drawn with Graphics2D as
+ * PNGCanvas does.
+ */
+final class PNGRasterCanvas implements Canvas
+{
+	/*
+	 * Larger images (e.g. A4 at more than 300 dpi) are not kept.
+	 */
+	private static final int MAX_POOLED_PIXELS = 16 * 1024 * 1024;
+
+	private static final byte[] SIGNATURE = new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+	private static final ThreadLocal<BufferedImage> IMAGES = new ThreadLocal<BufferedImage>();
+
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>();
+
+	private static final ConcurrentMap<String, Font> FONTS = new ConcurrentHashMap<String, Font>();
+
+	private final FontMetrics fontMetrics;
+
+	private final int resolution;
+
+	private final int compressionLevel;
+
+	private final double coordinateScale;
+
+	private final double fontScale;
+
+	private BufferedImage image;
+
+	private byte[] pixels;
+
+	private Graphics2D graphics;
+
+	private Path2D.Double currentPath;
+
+	/*
+	 * The rectangles of the current path in device pixels (x0, y0, x1, y1),
+	 * null as soon as the path contains anything else.
+	 */
+	private List<double[]> rectangles;
+
+	private double translateX;
+
+	private double translateY;
+
+	private double scaleX = 1;
+
+	private double scaleY = 1;
+
+	private boolean rotated = false;
+
+	PNGRasterCanvas(double width, double height, int resolution, String fontFamilyList, int compressionLevel)
+	{
+		this.fontMetrics = FontCache.getFontMetrics(GraphicsFormat.PNG, fontFamilyList);
+		this.resolution = resolution;
+		this.compressionLevel = compressionLevel;
+		this.coordinateScale = resolution / 25.4;
+		this.fontScale = resolution / 72.0;
+		int w = (int) (width * this.coordinateScale + 0.5);
+		int h = (int) (height * this.coordinateScale + 0.5);
+		this.image = IMAGES.get();
+		if (Objects.isNull(this.image) || this.image.getWidth() != w || this.image.getHeight() != h)
+		{
+			this.image = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+		}
+		/*
+		 * Taken from the pool until close(), so a second canvas of the same
+		 * thread does not draw into it.
+		 */
+		IMAGES.remove();
+		this.pixels = ((DataBufferByte) this.image.getRaster().getDataBuffer()).getData();
+		Arrays.fill(this.pixels, (byte) 0xff);
+		this.graphics = this.image.createGraphics();
+		this.graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+		this.graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		this.graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		this.graphics.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+		this.setTransformation(0, 0, 0, 1, 1);
+	}
+
+	@Override
+	public void setTransformation(double translateX, double translateY, double rotate, double scaleX, double scaleY)
+	{
+		/*
+		 * The y axis of the bill goes up, the one of the image down.
+		 */
+		this.translateX = translateX * this.coordinateScale;
+		this.translateY = this.image.getHeight() - translateY * this.coordinateScale;
+		this.scaleX = scaleX;
+		this.scaleY = scaleY;
+		this.rotated = rotate != 0;
+		AffineTransform transform = new AffineTransform();
+		transform.translate(this.translateX, this.translateY);
+		if (this.rotated)
+		{
+			transform.rotate(-rotate);
+		}
+		if (scaleX != 1 || scaleY != 1)
+		{
+			transform.scale(scaleX, scaleY);
+		}
+		this.graphics.setTransform(transform);
+	}
+
+	@Override
+	public void putText(String text, double x, double y, int fontSize, boolean isBold)
+	{
+		int size = (int) (fontSize * this.fontScale + 0.5);
+		String family = this.fontMetrics.getFirstFontFamily();
+		Font font = FONTS.computeIfAbsent(family + (isBold ? ":bold:" : ":plain:") + size, key -> new Font(family, isBold ? Font.BOLD : Font.PLAIN, size));
+		this.graphics.setColor(Color.BLACK);
+		this.graphics.setFont(font);
+		this.graphics.drawString(text, (float) (x * this.coordinateScale), (float) (-y * this.coordinateScale));
+	}
+
+	@Override
+	public void putTextLines(String[] lines, double x, double y, int fontSize, double leading)
+	{
+		for (String line : lines)
+		{
+			this.putText(line, x, y, fontSize, false);
+			y -= this.fontMetrics.getLineHeight(fontSize) + leading;
+		}
+	}
+
+	@Override
+	public void startPath()
+	{
+		this.currentPath = new Path2D.Double(Path2D.WIND_NON_ZERO);
+		this.rectangles = new ArrayList<double[]>();
+	}
+
+	@Override
+	public void moveTo(double x, double y)
+	{
+		this.rectangles = null;
+		this.currentPath.moveTo(x * this.coordinateScale, -y * this.coordinateScale);
+	}
+
+	@Override
+	public void lineTo(double x, double y)
+	{
+		this.rectangles = null;
+		this.currentPath.lineTo(x * this.coordinateScale, -y * this.coordinateScale);
+	}
+
+	@Override
+	public void cubicCurveTo(double x1, double y1, double x2, double y2, double x, double y)
+	{
+		this.rectangles = null;
+		this.currentPath.curveTo(x1 * this.coordinateScale, -y1 * this.coordinateScale, x2 * this.coordinateScale, -y2 * this.coordinateScale, x * this.coordinateScale, -y * this.coordinateScale);
+	}
+
+	@Override
+	public void addRectangle(double x, double y, double width, double height)
+	{
+		x *= this.coordinateScale;
+		y *= -this.coordinateScale;
+		width *= this.coordinateScale;
+		height *= -this.coordinateScale;
+		this.currentPath.moveTo(x, y);
+		this.currentPath.lineTo(x, y + height);
+		this.currentPath.lineTo(x + width, y + height);
+		this.currentPath.lineTo(x + width, y);
+		this.currentPath.closePath();
+		if (!Objects.isNull(this.rectangles))
+		{
+			double x0 = this.translateX + this.scaleX * x;
+			double x1 = this.translateX + this.scaleX * (x + width);
+			double y0 = this.translateY + this.scaleY * y;
+			double y1 = this.translateY + this.scaleY * (y + height);
+			this.rectangles.add(new double[] { Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1) });
+		}
+	}
+
+	@Override
+	public void closeSubpath()
+	{
+		this.currentPath.closePath();
+	}
+
+	@Override
+	public void fillPath(int color)
+	{
+		if (!Objects.isNull(this.rectangles) && !this.rotated)
+		{
+			this.fillRectangles(color);
+		}
+		else
+		{
+			this.graphics.setColor(new Color(color));
+			this.graphics.fill(this.currentPath);
+		}
+	}
+
+	/*
+	 * Sets the pixels covered by the rectangles, with the edges rounded to
+	 * whole pixels. Overlapping rectangles of one path get the same color,
+	 * as with the non-zero winding rule.
+	 */
+	private void fillRectangles(int color)
+	{
+		int red = (color >> 16) & 0xff;
+		int green = (color >> 8) & 0xff;
+		int blue = color & 0xff;
+		byte gray = (byte) ((red * 77 + green * 150 + blue * 29 + 128) >> 8);
+		int width = this.image.getWidth();
+		int height = this.image.getHeight();
+		for (double[] rectangle : this.rectangles)
+		{
+			int x0 = Math.max(0, (int) Math.round(rectangle[0]));
+			int y0 = Math.max(0, (int) Math.round(rectangle[1]));
+			int x1 = Math.min(width, (int) Math.round(rectangle[2]));
+			int y1 = Math.min(height, (int) Math.round(rectangle[3]));
+			for (int y = y0; y < y1; y++)
+			{
+				Arrays.fill(this.pixels, y * width + x0, y * width + Math.max(x0, x1), gray);
+			}
+		}
+	}
+
+	@Override
+	public void strokePath(double strokeWidth, int color)
+	{
+		this.strokePath(strokeWidth, color, LineStyle.Solid);
+	}
+
+	@Override
+	public void strokePath(double strokeWidth, int color, LineStyle lineStyle)
+	{
+		float width = (float) (strokeWidth * this.fontScale);
+		BasicStroke stroke = null;
+		switch (lineStyle)
+		{
+			case Dashed:
+				stroke = new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[] { 4 * width }, 0);
+				break;
+			case Dotted:
+				stroke = new BasicStroke(width, BasicStroke.CAP_ROUND, BasicStroke.JOIN_MITER, 10, new float[] { 0, 3 * width }, 0);
+				break;
+			default:
+				stroke = new BasicStroke(width, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER);
+		}
+		this.graphics.setColor(new Color(color));
+		this.graphics.setStroke(stroke);
+		this.graphics.draw(this.currentPath);
+	}
+
+	@Override
+	public double getAscender(int fontSize)
+	{
+		return this.fontMetrics.getAscender(fontSize);
+	}
+
+	@Override
+	public double getDescender(int fontSize)
+	{
+		return this.fontMetrics.getDescender(fontSize);
+	}
+
+	@Override
+	public double getLineHeight(int fontSize)
+	{
+		return this.fontMetrics.getLineHeight(fontSize);
+	}
+
+	@Override
+	public double getTextWidth(CharSequence text, int fontSize, boolean isBold)
+	{
+		return this.fontMetrics.getTextWidth(text, fontSize, isBold);
+	}
+
+	@Override
+	public String[] splitLines(String text, double maxLength, int fontSize)
+	{
+		return this.fontMetrics.splitLines(text, maxLength, fontSize);
+	}
+
+	/*
+	 * Writes the image as PNG: grayscale, 8 bit, the resolution in pHYs and
+	 * the title in tEXt like PNGCanvas. The rows are not filtered, the white
+	 * background compresses well without.
+	 */
+	void writeTo(OutputStream os) throws IOException
+	{
+		int width = this.image.getWidth();
+		int height = this.image.getHeight();
+		DataOutputStream dos = new DataOutputStream(os);
+		dos.write(SIGNATURE);
+		ByteArrayOutputStream chunk = new ByteArrayOutputStream(13);
+		DataOutputStream data = new DataOutputStream(chunk);
+		data.writeInt(width);
+		data.writeInt(height);
+		data.writeByte(8);
+		data.writeByte(0);
+		data.writeByte(0);
+		data.writeByte(0);
+		data.writeByte(0);
+		writeChunk(dos, "IHDR", chunk.toByteArray(), chunk.size());
+		chunk.reset();
+		int pixelsPerMeter = (int) (this.resolution / 25.4 * 1000 + 0.5);
+		data.writeInt(pixelsPerMeter);
+		data.writeInt(pixelsPerMeter);
+		data.writeByte(1);
+		writeChunk(dos, "pHYs", chunk.toByteArray(), chunk.size());
+		byte[] title = "Title\0Swiss QR Bill".getBytes(StandardCharsets.ISO_8859_1);
+		writeChunk(dos, "tEXt", title, title.length);
+
+		Deflater deflater = DEFLATERS.get();
+		if (Objects.isNull(deflater))
+		{
+			deflater = new Deflater();
+			DEFLATERS.set(deflater);
+		}
+		deflater.reset();
+		deflater.setLevel(this.compressionLevel);
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(this.pixels.length / 16 + 1024);
+		DeflaterOutputStream deflated = new DeflaterOutputStream(compressed, deflater, 64 * 1024);
+		for (int y = 0; y < height; y++)
+		{
+			deflated.write(0);
+			deflated.write(this.pixels, y * width, width);
+		}
+		deflated.finish();
+		writeChunk(dos, "IDAT", compressed.toByteArray(), compressed.size());
+		writeChunk(dos, "IEND", new byte[0], 0);
+		dos.flush();
+	}
+
+	private static void writeChunk(DataOutputStream dos, String type, byte[] data, int length) throws IOException
+	{
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data, 0, length);
+		dos.writeInt(length);
+		dos.write(typeBytes);
+		dos.write(data, 0, length);
+		dos.writeInt((int) crc.getValue());
+	}
+
+	/*
+	 * Returns the image to the pool of the thread.
+	 */
+	@Override
+	public void close()
+	{
+		if (!Objects.isNull(this.graphics))
+		{
+			this.graphics.dispose();
+			this.graphics = null;
+		}
+		if (!Objects.isNull(this.image))
+		{
+			if ((long) this.image.getWidth() * this.image.getHeight() <= MAX_POOLED_PIXELS)
+			{
+				IMAGES.set(this.image);
+			}
+			this.image = null;
+			this.pixels = null;
+		}
+	}
+}
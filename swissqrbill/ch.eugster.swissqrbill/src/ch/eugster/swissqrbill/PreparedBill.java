@@ -0,0 +1,115 @@
+package ch.eugster.swissqrbill;
+
+import java.nio.file.Path;
+
+import net.codecrete.qrbill.generator.Bill;
+import net.codecrete.qrbill.generator.GraphicsFormat;
+
+/*
+ * The bill and the processing parameters mapped from a single request.
+ */
+final class PreparedBill
+{
+	private final String id;
+
+	private final Bill bill;
+
+	private final GraphicsFormat graphicsFormat;
+
+	private final Path invoice;
+
+	private final Path path;
+
+	private final boolean payload;
+
+	private final String hashAlgorithm;
+
+	private final AppendMode appendMode;
+
+	private final boolean dryRun;
+
+	private final int compressionLevel;
+
+	private final boolean compact;
+
+	PreparedBill(String id, Bill bill, GraphicsFormat graphicsFormat, Path invoice, Path path, boolean payload, String hashAlgorithm, AppendMode appendMode, boolean dryRun, int compressionLevel, boolean compact)
+	{
+		this.id = id;
+		this.bill = bill;
+		this.graphicsFormat = graphicsFormat;
+		this.invoice = invoice;
+		this.path = path;
+		this.payload = payload;
+		this.hashAlgorithm = hashAlgorithm;
+		this.appendMode = appendMode;
+		this.dryRun = dryRun;
+		this.compressionLevel = compressionLevel;
+		this.compact = compact;
+	}
+
+	String getId()
+	{
+		return this.id;
+	}
+
+	Bill getBill()
+	{
+		return this.bill;
+	}
+
+	GraphicsFormat getGraphicsFormat()
+	{
+		return this.graphicsFormat;
+	}
+
+	Path getInvoice()
+	{
+		return this.invoice;
+	}
+
+	Path getPath()
+	{
+		return this.path;
+	}
+
+	boolean isPayload()
+	{
+		return this.payload;
+	}
+
+	String getHashAlgorithm()
+	{
+		return this.hashAlgorithm;
+	}
+
+	AppendMode getAppendMode()
+	{
+		return this.appendMode;
+	}
+
+	/*
+	 * The bill is mapped and validated only, nothing is rendered, read or
+	 * written.
+	 */
+	boolean isDryRun()
+	{
+		return this.dryRun;
+	}
+
+	/*
+	 * The deflate level of a png (0 to 9), -1 if the png is written by the
+	 * PNGCanvas of the library.
+	 */
+	int getCompressionLevel()
+	{
+		return this.compressionLevel;
+	}
+
+	/*
+	 * The pdf is written by CompactPDFWriter.
+	 */
+	boolean isCompact()
+	{
+		return this.compact;
+	}
+}
@@ -0,0 +1,125 @@
+package ch.eugster.swissqrbill;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.graphics.form.PDFormXObject;
+
+import net.codecrete.qrbill.generator.Bill;
+import net.codecrete.qrbill.generator.BillFormat;
+import net.codecrete.qrbill.generator.OutputSize;
+import net.codecrete.qrbill.generator.QRBill;
+import net.codecrete.qrbill.generator.SeparatorType;
+
+/*
+ * Renders the bills of a print run into a single document, one bill per
+ * page. All pages share one resource dictionary, so the fonts are contained
+ * only once. The layout template of a format (separators, titles) is the
+ * same on every page; it is drawn once into a form xobject the pages refer
+ * to, and each page only draws the data of its bill.
+ */
+final class PrintRun implements Closeable
+{
+	private static final float MM_TO_PT = (float) (72 / 25.4);
+
+	private final DrawingCache drawingCache;
+
+	private final PDDocument document;
+
+	private final PDResources resources = new PDResources();
+
+	private final Map<LayoutTemplate, PDFormXObject> forms = new HashMap<LayoutTemplate, PDFormXObject>();
+
+	PrintRun(MemoryUsageSetting memoryUsage, DrawingCache drawingCache)
+	{
+		this.drawingCache = drawingCache;
+		this.document = new PDDocument(memoryUsage);
+		this.resources.getCOSObject().setDirect(false);
+	}
+
+	void add(Bill bill) throws IOException
+	{
+		OutputSize outputSize = bill.getFormat().getOutputSize();
+		PDPage page = new PDPage(new PDRectangle((float) CanvasFactory.getDrawingWidth(outputSize) * MM_TO_PT, (float) CanvasFactory.getDrawingHeight(outputSize) * MM_TO_PT));
+		page.setResources(this.resources);
+		this.document.addPage(page);
+
+		LayoutTemplate template = LayoutTemplate.get(bill.getFormat());
+		PDFDocumentCanvas canvas = new PDFDocumentCanvas(this.document, page);
+		try
+		{
+			if (Objects.isNull(template))
+			{
+				this.drawingCache.draw(bill, canvas);
+			}
+			else
+			{
+				canvas.drawForm(this.getForm(template));
+				BillFormat format = new BillFormat(bill.getFormat());
+				format.setSeparatorType(SeparatorType.NONE);
+				bill.setFormat(format);
+				this.drawingCache.draw(bill, template.exclude(canvas));
+			}
+		}
+		finally
+		{
+			canvas.close();
+		}
+	}
+
+	private PDFormXObject getForm(LayoutTemplate template) throws IOException
+	{
+		PDFormXObject form = this.forms.get(template);
+		if (Objects.isNull(form))
+		{
+			form = new PDFormXObject(this.document);
+			form.setBBox(new PDRectangle((float) QRBill.QR_BILL_WITH_HORI_LINE_WIDTH * MM_TO_PT, (float) QRBill.QR_BILL_WITH_HORI_LINE_HEIGHT * MM_TO_PT));
+			form.setResources(new PDResources());
+			PDFDocumentCanvas canvas = new PDFDocumentCanvas(new PDPageContentStream(this.document, form, form.getContentStream().createOutputStream(COSName.FLATE_DECODE)));
+			try
+			{
+				template.draw(canvas);
+			}
+			finally
+			{
+				canvas.close();
+			}
+			this.forms.put(template, form);
+		}
+		return form;
+	}
+
+	int getNumberOfPages()
+	{
+		return this.document.getNumberOfPages();
+	}
+
+	void save(OutputStream os, boolean compact) throws IOException
+	{
+		if (compact)
+		{
+			CompactPDFWriter.write(this.document, os);
+		}
+		else
+		{
+			this.document.save(os);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		this.document.close();
+	}
+}
@@ -0,0 +1,153 @@
+package ch.eugster.swissqrbill;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.codecrete.qrbill.canvas.Canvas;
+import net.codecrete.qrbill.canvas.FontMetrics;
+
+/*
+ * Records the drawing operations of a bill, so they can be replayed onto
+ * any number of canvases later. Text is measured with the metrics of the
+ * canvas the operations are meant for, so the layout is the same as if
+ * the bill was drawn onto that canvas directly.
+ */
+final class RecordingCanvas implements Canvas
+{
+	interface Operation
+	{
+		void apply(Canvas canvas) throws IOException;
+	}
+
+	private final FontMetrics fontMetrics;
+
+	private final List<Operation> operations = new ArrayList<Operation>();
+
+	RecordingCanvas(FontMetrics fontMetrics)
+	{
+		this.fontMetrics = fontMetrics;
+	}
+
+	List<Operation> getOperations()
+	{
+		return Collections.unmodifiableList(new ArrayList<Operation>(this.operations));
+	}
+
+	static void replay(List<Operation> operations, Canvas canvas) throws IOException
+	{
+		for (Operation operation : operations)
+		{
+			operation.apply(canvas);
+		}
+	}
+
+	@Override
+	public void setTransformation(double translateX, double translateY, double rotate, double scaleX, double scaleY)
+	{
+		this.operations.add(canvas -> canvas.setTransformation(translateX, translateY, rotate, scaleX, scaleY));
+	}
+
+	@Override
+	public void putText(String text, double x, double y, int fontSize, boolean isBold)
+	{
+		this.operations.add(canvas -> canvas.putText(text, x, y, fontSize, isBold));
+	}
+
+	@Override
+	public void putTextLines(String[] lines, double x, double y, int fontSize, double leading)
+	{
+		String[] copy = lines.clone();
+		this.operations.add(canvas -> canvas.putTextLines(copy, x, y, fontSize, leading));
+	}
+
+	@Override
+	public void startPath()
+	{
+		this.operations.add(canvas -> canvas.startPath());
+	}
+
+	@Override
+	public void moveTo(double x, double y)
+	{
+		this.operations.add(canvas -> canvas.moveTo(x, y));
+	}
+
+	@Override
+	public void lineTo(double x, double y)
+	{
+		this.operations.add(canvas -> canvas.lineTo(x, y));
+	}
+
+	@Override
+	public void cubicCurveTo(double x1, double y1, double x2, double y2, double x, double y)
+	{
+		this.operations.add(canvas -> canvas.cubicCurveTo(x1, y1, x2, y2, x, y));
+	}
+
+	@Override
+	public void addRectangle(double x, double y, double width, double height)
+	{
+		this.operations.add(canvas -> canvas.addRectangle(x, y, width, height));
+	}
+
+	@Override
+	public void closeSubpath()
+	{
+		this.operations.add(canvas -> canvas.closeSubpath());
+	}
+
+	@Override
+	public void fillPath(int color)
+	{
+		this.operations.add(canvas -> canvas.fillPath(color));
+	}
+
+	@Override
+	public void strokePath(double strokeWidth, int color)
+	{
+		this.operations.add(canvas -> canvas.strokePath(strokeWidth, color));
+	}
+
+	@Override
+	public void strokePath(double strokeWidth, int color, LineStyle lineStyle)
+	{
+		this.operations.add(canvas -> canvas.strokePath(strokeWidth, color, lineStyle));
+	}
+
+	@Override
+	public double getAscender(int fontSize)
+	{
+		return this.fontMetrics.getAscender(fontSize);
+	}
+
+	@Override
+	public double getDescender(int fontSize)
+	{
+		return this.fontMetrics.getDescender(fontSize);
+	}
+
+	@Override
+	public double getLineHeight(int fontSize)
+	{
+		return this.fontMetrics.getLineHeight(fontSize);
+	}
+
+	@Override
+	public double getTextWidth(CharSequence text, int fontSize, boolean isBold)
+	{
+		return this.fontMetrics.getTextWidth(text, fontSize, isBold);
+	}
+
+	@Override
+	public String[] splitLines(String text, double maxLength, int fontSize)
+	{
+		return this.fontMetrics.splitLines(text, maxLength, fontSize);
+	}
+
+	@Override
+	public void close()
+	{
+	}
+}
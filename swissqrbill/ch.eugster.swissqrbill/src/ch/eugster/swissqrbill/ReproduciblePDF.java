@@ -0,0 +1,83 @@
+package ch.eugster.swissqrbill;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * pdfbox gives a new document a file identifier (/ID in the trailer) made
+ * from the current time, so the same bill is rendered to different bytes
+ * on every run. fixId replaces it, in place and with the same length, by
+ * the MD5 of the document, so identical bills give identical files. The
+ * document has no other time dependent metadata (no creation date).
+ */
+final class ReproduciblePDF
+{
+	private static final byte[] ID = "/ID [<".getBytes(StandardCharsets.ISO_8859_1);
+
+	/*
+	 * /ID [<32 hex digits> <32 hex digits>]
+	 */
+	private static final int DIGITS = 32;
+
+	/*
+	 * The trailer written by COSWriter is at the end, within this many bytes.
+	 */
+	private static final int TRAILER = 1024;
+
+	private ReproduciblePDF()
+	{
+	}
+
+	static byte[] fixId(byte[] document)
+	{
+		int first = lastIndexOf(document, ID) + ID.length;
+		int second = first + DIGITS + 3;
+		if (first < ID.length || second + DIGITS >= document.length || document[first + DIGITS] != '>' || document[second - 1] != '<' || document[second + DIGITS] != '>')
+		{
+			return document;
+		}
+		Arrays.fill(document, first, first + DIGITS, (byte) '0');
+		Arrays.fill(document, second, second + DIGITS, (byte) '0');
+		byte[] digest = md5().digest(document);
+		for (int i = 0; i < digest.length; i++)
+		{
+			byte high = (byte) Character.toUpperCase(Character.forDigit((digest[i] >>> 4) & 0xf, 16));
+			byte low = (byte) Character.toUpperCase(Character.forDigit(digest[i] & 0xf, 16));
+			document[first + 2 * i] = document[second + 2 * i] = high;
+			document[first + 2 * i + 1] = document[second + 2 * i + 1] = low;
+		}
+		return document;
+	}
+
+	private static int lastIndexOf(byte[] document, byte[] pattern)
+	{
+		int end = Math.max(0, document.length - TRAILER);
+		for (int i = document.length - pattern.length; i >= end; i--)
+		{
+			int j = 0;
+			while (j < pattern.length && document[i + j] == pattern[j])
+			{
+				j++;
+			}
+			if (j == pattern.length)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static MessageDigest md5()
+	{
+		try
+		{
+			return MessageDigest.getInstance("MD5");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package ch.eugster.swissqrbill;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import net.codecrete.qrbill.generator.GraphicsFormat;
+import net.codecrete.qrbill.generator.OutputSize;
+
+/*
+ * The schema of a bill request: the fields that are checked before the
+ * request is mapped, when they are required, what a valid value is and the
+ * error reported otherwise. The order of the constants is the order of the
+ * errors. Errors without own key are reported under the invoice number.
+ */
+enum RequestField
+{
+	INVOICE(Requirement.ALWAYS, request -> request.invoice, Check.NOT_EMPTY, "Rechnungsnummer", "'invoice' Eine Rechnungsnummer muss zwingend vorhanden sein."),
+	PATH_OUTPUT(Requirement.TO_FILE, request -> Check.NOT_BLANK.test(request.output) ? request.output : request.outputRoot, Check.NOT_BLANK, null, "Der Pfad für die generierte Daten muss gültig sein (Systempfad oder URI)."),
+	LAYOUT(Requirement.OPTIONAL, request -> request.layout, oneOf(OutputLayout.values()), "path.layout", "'layout' muss eines der folgenden Werte sein: " + join(OutputLayout.values())),
+	HASH(Requirement.OPTIONAL, request -> request.hash, RequestValidator::isHashAlgorithm, "options.hash", "'hash' muss ein verfügbarer Hash-Algorithmus sein (z.B. SHA-256)."),
+	APPEND_MODE(Requirement.OPTIONAL, request -> request.appendMode, oneOf(AppendMode.values()), "options.append_mode", "'append_mode' muss eines der folgenden Werte sein: " + join(AppendMode.values())),
+	VALIDATION(Requirement.OPTIONAL, request -> request.validation, oneOf(ValidationMode.values()), "options.validation", "'validation' muss eines der folgenden Werte sein: " + join(ValidationMode.values())),
+	GRAPHICS_FORMAT(Requirement.ALWAYS, request -> request.graphicsFormat, oneOf(GraphicsFormat.values()), "form.graphics_format", "'graphics_format' muss eines der folgenden Werte sein: " + join(GraphicsFormat.values())),
+	OUTPUT_SIZE(Requirement.OPTIONAL, request -> request.outputSize, oneOf(OutputSize.values()), "form.output_size", "'output_size' muss eines der folgenden Werte sein: " + join(OutputSize.values())),
+	RESOLUTION(Requirement.OPTIONAL, request -> request.resolution, between(72, 600), "form.resolution", "'resolution' muss eine Ganzzahl zwischen 72 und 600 (dpi) sein."),
+	COMPRESSION_LEVEL(Requirement.OPTIONAL, request -> request.compressionLevel, between(0, 9), "form.compression_level", "'compression_level' muss eine Ganzzahl zwischen 0 (keine Kompression) und 9 (stärkste Kompression) sein."),
+	IBAN(Requirement.ALWAYS, request -> request.iban, Check.NOT_BLANK, null, "'iban' muss die IBAN oder QR-IBAN des Rechnungstellers enthalten."),
+	REFERENCE(Requirement.QR_IBAN, request -> request.reference, Check.NOT_BLANK, null, "'reference' muss eine 27-stellige Referenznummer sein, wenn QR-IBAN verwendet wird."),
+	CREDITOR_NAME(Requirement.ALWAYS, request -> request.creditor.name, Check.PRESENT, null, "'creditor.name' muss den Namen des Rechnungstellers enthalten (maximal 70 Buchstaben)."),
+	CREDITOR_ADDRESS(Requirement.ALWAYS, request -> request.creditor.address, Check.PRESENT, null, "'creditor.address' muss die Adresse des Rechnungstellers enthalten (maximal 70 Buchstaben)."),
+	CREDITOR_CITY(Requirement.ALWAYS, request -> request.creditor.city, Check.PRESENT, null, "'creditor.city' muss Postleitzahl und Ort des Rechnungstellers enthalten (maximal 70 Buchstaben)."),
+	CREDITOR_COUNTRY(Requirement.ALWAYS, request -> request.creditor.country, Check.PRESENT, null, "'creditor.country' muss den zweistelligen Landcode gemäss ISO 3166 des Rechnungstellers enthalten."),
+	DEBTOR_NAME(Requirement.DEBTOR, request -> request.debtor.name, Check.PRESENT, null, "'debtor.name' muss den Namen des Rechnungempfängers enthalten (maximal 70 Buchstaben)."),
+	DEBTOR_ADDRESS(Requirement.DEBTOR, request -> request.debtor.address, Check.PRESENT, null, "'debtor.address' muss die Adresse des Rechnungsempfängers enthalten (maximal 70 Buchstaben)."),
+	DEBTOR_CITY(Requirement.DEBTOR, request -> request.debtor.city, Check.PRESENT, null, "'debtor.city' muss Postleitzahl und Ort des Rechnungsempfängers enthalten (maximal 70 Buchstaben)."),
+	DEBTOR_COUNTRY(Requirement.DEBTOR, request -> request.debtor.country, Check.PRESENT, null, "'debtor.country' muss den zweistelligen Landcode gemäss ISO 3166 des Rechnungsempfängers enthalten.");
+
+	/*
+	 * When a field has to be valid. Optional fields are checked only if
+	 * they are given.
+	 */
+	enum Requirement
+	{
+		ALWAYS,
+		OPTIONAL,
+		TO_FILE,
+		QR_IBAN,
+		DEBTOR;
+	}
+
+	enum Check implements Predicate<String>
+	{
+		PRESENT
+		{
+			@Override
+			public boolean test(String value)
+			{
+				return !Objects.isNull(value);
+			}
+		},
+		NOT_EMPTY
+		{
+			@Override
+			public boolean test(String value)
+			{
+				return !Objects.isNull(value) && !value.isEmpty();
+			}
+		},
+		NOT_BLANK
+		{
+			@Override
+			public boolean test(String value)
+			{
+				return !Objects.isNull(value) && !value.trim().isEmpty();
+			}
+		};
+	}
+
+	private final Requirement requirement;
+
+	private final Function<BillRequest, String> accessor;
+
+	private final Predicate<String> check;
+
+	private final String errorKey;
+
+	private final String message;
+
+	private RequestField(Requirement requirement, Function<BillRequest, String> accessor, Predicate<String> check, String errorKey, String message)
+	{
+		this.requirement = requirement;
+		this.accessor = accessor;
+		this.check = check;
+		this.errorKey = errorKey;
+		this.message = message;
+	}
+
+	/*
+	 * null if the error is reported under the invoice number.
+	 */
+	String getErrorKey()
+	{
+		return this.errorKey;
+	}
+
+	String getMessage()
+	{
+		return this.message;
+	}
+
+	boolean isValid(BillRequest request, boolean toFile)
+	{
+		switch (this.requirement)
+		{
+			case OPTIONAL:
+				String value = this.accessor.apply(request);
+				return !Check.NOT_BLANK.test(value) || this.check.test(value);
+			case TO_FILE:
+				return !toFile || this.check.test(this.accessor.apply(request));
+			case QR_IBAN:
+				return !RequestValidator.isQRIban(request.iban) || this.check.test(this.accessor.apply(request));
+			case DEBTOR:
+				return Objects.isNull(request.debtor) || this.check.test(this.accessor.apply(request));
+			default:
+				return this.check.test(this.accessor.apply(request));
+		}
+	}
+
+	private static Predicate<String> oneOf(Enum<?>[] values)
+	{
+		Set<String> names = new HashSet<String>();
+		Arrays.stream(values).forEach(value -> names.add(value.name()));
+		return value -> !Objects.isNull(value) && names.contains(value.trim());
+	}
+
+	private static Predicate<String> between(int min, int max)
+	{
+		return value ->
+		{
+			try
+			{
+				int number = Integer.parseInt(value.trim());
+				return number >= min && number <= max;
+			}
+			catch (NumberFormatException e)
+			{
+				return false;
+			}
+		};
+	}
+
+	private static String join(Enum<?>[] values)
+	{
+		StringBuilder builder = new StringBuilder();
+		for (Enum<?> value : values)
+		{
+			builder = builder.append(value.name() + ", ");
+		}
+		String names = builder.toString().trim();
+		return names.substring(0, names.length() - 1);
+	}
+}
@@ -0,0 +1,89 @@
+package ch.eugster.swissqrbill;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Checks a request against the fields of RequestField, without throwing.
+ * The fields and their checks are set up once when the class is loaded.
+ */
+final class RequestValidator
+{
+	private static final RequestField[] FIELDS = RequestField.values();
+
+	/*
+	 * MessageDigest can only be asked for an algorithm by trying to get
+	 * it, so the answer is kept per name (for a limited number of names,
+	 * the names come from the requests).
+	 */
+	private static final int MAX_HASH_ALGORITHMS = 64;
+
+	private static final ConcurrentMap<String, Boolean> HASH_ALGORITHMS = new ConcurrentHashMap<String, Boolean>();
+
+	private RequestValidator()
+	{
+	}
+
+	/*
+	 * Adds an error to the context for each invalid field, or for the first
+	 * one only with FAIL_FAST. Returns whether all fields are valid.
+	 */
+	static boolean validate(BillRequest request, boolean toFile, ValidationMode mode, GenerationContext context)
+	{
+		String id = RequestField.INVOICE.isValid(request, toFile) ? request.invoice : null;
+		boolean valid = true;
+		for (RequestField field : FIELDS)
+		{
+			if (!field.isValid(request, toFile))
+			{
+				context.addErrorNode(Objects.isNull(field.getErrorKey()) ? id : field.getErrorKey(), field.getMessage());
+				if (mode == ValidationMode.FAIL_FAST)
+				{
+					return false;
+				}
+				valid = false;
+			}
+		}
+		return valid;
+	}
+
+	static ValidationMode selectMode(BillRequest request)
+	{
+		if (RequestField.VALIDATION.isValid(request, false) && !Objects.isNull(request.validation) && request.validation.trim().equals(ValidationMode.FAIL_FAST.name()))
+		{
+			return ValidationMode.FAIL_FAST;
+		}
+		return ValidationMode.COLLECT_ALL;
+	}
+
+	static boolean isQRIban(String iban)
+	{
+		return !Objects.isNull(iban) && iban.length() > 6 && iban.charAt(4) == '3' && (iban.charAt(5) == '0' || iban.charAt(5) == '1');
+	}
+
+	static boolean isHashAlgorithm(String hashAlgorithm)
+	{
+		String name = hashAlgorithm.trim();
+		Boolean available = HASH_ALGORITHMS.get(name);
+		if (Objects.isNull(available))
+		{
+			try
+			{
+				MessageDigest.getInstance(name);
+				available = Boolean.TRUE;
+			}
+			catch (NoSuchAlgorithmException e)
+			{
+				available = Boolean.FALSE;
+			}
+			if (HASH_ALGORITHMS.size() < MAX_HASH_ALGORITHMS)
+			{
+				HASH_ALGORITHMS.put(name, available);
+			}
+		}
+		return available.booleanValue();
+	}
+}
@@ -0,0 +1,31 @@
+package ch.eugster.swissqrbill;
+
+import net.codecrete.qrbill.generator.Address;
+import net.codecrete.qrbill.generator.Bill;
+import net.codecrete.qrbill.generator.BillFormat;
+
+/*
+ * A valid bill with placeholder data, used to draw ahead of time what
+ * does not depend on the data of a bill.
+ */
+final class SampleBill
+{
+	private SampleBill()
+	{
+	}
+
+	static Bill create(BillFormat format)
+	{
+		Bill bill = new Bill();
+		bill.setAccount("CH9300762011623852957");
+		bill.setAmountFromDouble(Double.valueOf(1D));
+		Address creditor = new Address();
+		creditor.setName("Sample");
+		creditor.setAddressLine1("Sample");
+		creditor.setAddressLine2("Sample");
+		creditor.setCountryCode("CH");
+		bill.setCreditor(creditor);
+		bill.setFormat(format);
+		return bill;
+	}
+}
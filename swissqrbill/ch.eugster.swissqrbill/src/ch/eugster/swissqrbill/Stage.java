@@ -0,0 +1,27 @@
+package ch.eugster.swissqrbill;
+
+/*
+ * The stages of a generate call, as reported in 'timings' of the response.
+ */
+enum Stage
+{
+	PARSE("parse"),
+	MAPPING("mapping"),
+	VALIDATION("validation"),
+	RENDERING("rendering"),
+	INVOICE_LOADING("invoice_loading"),
+	FILE_WRITE("file_write"),
+	RESPONSE("response");
+
+	private final String key;
+
+	private Stage(String key)
+	{
+		this.key = key;
+	}
+
+	String getKey()
+	{
+		return this.key;
+	}
+}
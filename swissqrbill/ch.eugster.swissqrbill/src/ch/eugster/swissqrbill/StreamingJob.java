@@ -0,0 +1,100 @@
+package ch.eugster.swissqrbill;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/*
+ * Reads newline delimited json requests and writes one result line per
+ * request in the same order. At most 'window' requests are read ahead and
+ * in flight, so the memory used does not depend on the size of the job.
+ */
+final class StreamingJob
+{
+	private final ExecutorService executor;
+
+	private final Function<String, String> function;
+
+	private final int window;
+
+	StreamingJob(ExecutorService executor, Function<String, String> function, int window)
+	{
+		if (window < 1)
+		{
+			throw new IllegalArgumentException("window must be at least 1");
+		}
+		this.executor = executor;
+		this.function = function;
+		this.window = window;
+	}
+
+	long run(InputStream is, OutputStream os) throws IOException
+	{
+		long count = 0L;
+		Deque<Future<String>> inFlight = new ArrayDeque<Future<String>>(this.window);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+		Writer writer = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8));
+		try
+		{
+			String line = null;
+			while ((line = reader.readLine()) != null)
+			{
+				if (line.trim().isEmpty())
+				{
+					continue;
+				}
+				if (inFlight.size() >= this.window)
+				{
+					this.write(inFlight.removeFirst(), writer);
+				}
+				final String json = line;
+				inFlight.addLast(this.executor.submit(() -> this.function.apply(json)));
+				count++;
+			}
+			while (!inFlight.isEmpty())
+			{
+				this.write(inFlight.removeFirst(), writer);
+			}
+		}
+		finally
+		{
+			for (Future<String> future : inFlight)
+			{
+				future.cancel(true);
+			}
+			writer.flush();
+		}
+		return count;
+	}
+
+	private void write(Future<String> future, Writer writer) throws IOException
+	{
+		try
+		{
+			writer.write(future.get());
+			writer.write('\n');
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Die Verarbeitung wurde unterbrochen.");
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException(e.getCause());
+		}
+	}
+}
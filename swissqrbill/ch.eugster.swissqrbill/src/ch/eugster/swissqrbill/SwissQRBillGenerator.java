@@ -1,24 +1,61 @@
 package ch.eugster.swissqrbill;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import net.codecrete.qrbill.canvas.Canvas;
 import net.codecrete.qrbill.canvas.PDFCanvas;
 import net.codecrete.qrbill.generator.Address;
 import net.codecrete.qrbill.generator.Bill;
@@ -27,399 +64,1559 @@ import net.codecrete.qrbill.generator.GraphicsFormat;
 import net.codecrete.qrbill.generator.Language;
 import net.codecrete.qrbill.generator.OutputSize;
 import net.codecrete.qrbill.generator.QRBill;
+import net.codecrete.qrbill.generator.QRBillGenerationException;
+import net.codecrete.qrbill.generator.ValidationMessage;
 import net.codecrete.qrbill.generator.ValidationResult;
 
 public class SwissQRBillGenerator 
 {
-	private ObjectMapper mapper = new ObjectMapper();
+	private final ObjectMapper mapper;
+
+	private final ForkJoinPool pool;
+
+	private final int streamWindow;
+
+	private final MemoryUsageSetting memoryUsage;
+
+	private final DrawingCache drawingCache;
+
+	private final MetricsListener metricsListener;
+
+	private final Executor renderExecutor;
 
-	private ObjectNode targetNode = this.mapper.createObjectNode();
+	private final Executor ioExecutor;
 	
-	private ArrayNode errorNode = null;
+	private final int pngCompressionLevel;
 	
-	public String generate(String json) 
+	private final boolean compactPdf;
+	
+	private final DocumentStore documentStore;
+
+	public SwissQRBillGenerator()
 	{
-		JsonNode sourceNode = this.checkParameter(json);
-		if (sourceNode != null)
+		this(new Builder());
+	}
+	
+	public SwissQRBillGenerator(ObjectMapper mapper)
+	{
+		this(new Builder().mapper(mapper));
+	}
+	
+	/*
+	 * The generator keeps no per-request state, so one instance (and its
+	 * mapper) can be shared by any number of threads.
+	 */
+	private SwissQRBillGenerator(Builder builder)
+	{
+		this.mapper = builder.mapper;
+		this.pool = builder.pool;
+		this.streamWindow = builder.streamWindow > 0 ? builder.streamWindow : 2 * builder.pool.getParallelism();
+		this.memoryUsage = builder.memoryUsage;
+		this.drawingCache = new DrawingCache(builder.drawingCacheSize);
+		this.metricsListener = builder.metricsListener;
+		this.renderExecutor = Objects.isNull(builder.renderExecutor) ? newBoundedExecutor("swissqrbill-render", Runtime.getRuntime().availableProcessors()) : builder.renderExecutor;
+		this.ioExecutor = Objects.isNull(builder.ioExecutor) ? newBoundedExecutor("swissqrbill-io", Math.max(4, Runtime.getRuntime().availableProcessors())) : builder.ioExecutor;
+		this.pngCompressionLevel = builder.pngCompressionLevel;
+		this.compactPdf = builder.compactPdf;
+		this.documentStore = Objects.isNull(builder.documentStore) ? null : new DocumentStore(builder.documentStore, builder.linkFromDocumentStore);
+	}
+	
+	/*
+	 * Threads are started on demand and end after a minute without work, so
+	 * generators that never go asynchronous hold no threads.
+	 */
+	private static Executor newBoundedExecutor(String name, int threads)
+	{
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), runnable ->
 		{
-			String id = null;
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	public static Builder builder()
+	{
+		return new Builder();
+	}
+	
+	/*
+	 * Loads the fonts and glyph metrics shared by all generators ahead of
+	 * time, e.g. at startup, and renders a sample bill in every format once,
+	 * so the first requests do not pay for the initialization.
+	 */
+	public static void warmUp()
+	{
+		FontCache.warmUp(FontCache.DEFAULT_FONT);
+		for (GraphicsFormat graphicsFormat : GraphicsFormat.values())
+		{
+			BillFormat format = new BillFormat();
+			format.setFontFamily(FontCache.DEFAULT_FONT);
+			format.setGraphicsFormat(graphicsFormat);
+			Bill bill = SampleBill.create(format);
 			try
 			{
-				JsonNode invoiceNode = sourceNode.get("invoice");
-				if (Objects.isNull(invoiceNode) || invoiceNode.asText().isEmpty())
+				Canvas canvas = CanvasFactory.createCanvas(format);
+				try
+				{
+					QRBill.draw(bill, canvas);
+					CanvasFactory.writeTo(canvas, new ByteArrayOutputStream());
+				}
+				finally
 				{
-					throw new NullPointerException("'invoice' Eine Rechnungsnummer muss zwingend vorhanden sein.");
+					canvas.close();
 				}
-				id = invoiceNode.asText();
-				this.targetNode.put("invoice", id);
 			}
-			catch (NullPointerException e)
+			catch (IOException e)
 			{
-				this.addErrorNode("Rechnungsnummer", e.getLocalizedMessage());
+				throw new UncheckedIOException(e);
 			}
-
-			JsonNode sourcePathNode = sourceNode.get("path");
-			ObjectNode targetPathNode = this.targetNode.putObject("path");
-			String output = sourcePathNode.get("output").asText();
-			Path path = null;
-			try
+		}
+	}
+	
+	public long getDrawingCacheHits()
+	{
+		return this.drawingCache.getHits();
+	}
+	
+	public long getDrawingCacheMisses()
+	{
+		return this.drawingCache.getMisses();
+	}
+	
+	public String generate(String json) 
+	{
+		return this.generateContext(json).toJson();
+	}
+	
+	/*
+	 * Does what generate(String) does, but writes the json result to the
+	 * writer instead of returning it. The payload is base64 encoded chunk by
+	 * chunk into the writer, so neither the encoded payload nor the whole
+	 * result is held as text; a large appended invoice then takes about its
+	 * own size in memory instead of three times as much. The writer is
+	 * flushed, not closed.
+	 */
+	public void generateTo(String json, Writer writer) throws IOException
+	{
+		GenerationContext context = this.generateContext(json);
+		try (JsonGenerator generator = this.mapper.getFactory().createGenerator(writer))
+		{
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			context.writeJson(generator);
+		}
+	}
+	
+	/*
+	 * As generateTo(String, Writer), the result is written in UTF-8.
+	 */
+	public void generateTo(String json, OutputStream os) throws IOException
+	{
+		GenerationContext context = this.generateContext(json);
+		try (JsonGenerator generator = this.mapper.getFactory().createGenerator(os, JsonEncoding.UTF8))
+		{
+			generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			context.writeJson(generator);
+		}
+	}
+	
+	/*
+	 * Does what generate(String) does, but returns the document as raw bytes
+	 * instead of base64 in the json, for hosts reading the result from
+	 * memory (e.g. a plugin bridge over JNI, which can use the address of
+	 * the direct buffer). The buffer holds
+	 *
+	 * - the length n of the header (4 bytes, big endian),
+	 * - the header (n bytes), the json result of generate(String) without
+	 *   file.qrbill, in UTF-8,
+	 * - the document (the remaining bytes), none if there is no payload.
+	 */
+	public ByteBuffer generateBinary(String json)
+	{
+		GenerationContext context = this.generateContext(json);
+		byte[] document = context.removePayload();
+		byte[] header = context.toJson().getBytes(StandardCharsets.UTF_8);
+		int size = Objects.isNull(document) ? 0 : document.length;
+		ByteBuffer buffer = ByteBuffer.allocateDirect(4 + header.length + size);
+		buffer.putInt(header.length).put(header);
+		if (!Objects.isNull(document))
+		{
+			buffer.put(document);
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	private GenerationContext generateContext(String json)
+	{
+		GenerationContext context = new GenerationContext(this.mapper);
+		try
+		{
+			BillRequest request = this.readRequest(json, context);
+			if (request == null)
 			{
-				path = adaptFilePathname(output, mapper);
-				
-				targetPathNode.put("output", path.toString());
+				context.getTargetNode().put("result", "ERROR");
 			}
-			catch (Exception e)
+			else
 			{
-				this.addErrorNode(id, "Der Pfad für die generierte Daten muss gültig sein (Systempfad oder URI).");
+				this.generate(request, context);
 			}
-			Path invoice = null;
-			if (!Objects.isNull(sourcePathNode) && !Objects.isNull(sourcePathNode.get("invoice")) && !sourcePathNode.get("invoice").asText().trim().isEmpty())
+		}
+		finally
+		{
+			context.report(this.metricsListener);
+		}
+		return context;
+	}
+	
+	/*
+	 * Does what generate(String) does without blocking the caller. Parsing,
+	 * validation and rendering run on the render executor, reading the
+	 * invoice and writing path.output on the io executor, so slow disks do
+	 * not hold rendering threads and the other way round (see
+	 * Builder.renderExecutor and Builder.ioExecutor). The future completes
+	 * with the json result, unexpected exceptions are reported in its errors.
+	 */
+	public CompletableFuture<String> generateAsync(String json)
+	{
+		GenerationContext context = new GenerationContext(this.mapper);
+		return CompletableFuture.supplyAsync(() ->
+		{
+			BillRequest request = this.readRequest(json, context);
+			if (request == null)
+			{
+				context.getTargetNode().put("result", "ERROR");
+				return null;
+			}
+			return this.check(request, context);
+		}, this.renderExecutor).thenCompose(prepared -> this.generateAsync(prepared, context)).handle((result, e) ->
+		{
+			if (!Objects.isNull(e))
+			{
+				Throwable cause = e instanceof CompletionException && !Objects.isNull(e.getCause()) ? e.getCause() : e;
+				context.addErrorNode("Parameter", "Bei der Verarbeitung ist ein unerwarteter Fehler aufgetreten (" + cause.getLocalizedMessage() + ").");
+				context.getTargetNode().put("result", "ERROR");
+			}
+			context.report(this.metricsListener);
+			return context.toJson();
+		});
+	}
+	
+	/*
+	 * The stages of generate(BillRequest, GenerationContext), each on the
+	 * executor matching its work. The append modes FILE and INCREMENTAL
+	 * read and write file backed in one step, which is done on the io
+	 * executor, like copying from the document store.
+	 */
+	private CompletableFuture<Void> generateAsync(PreparedBill prepared, GenerationContext context)
+	{
+		if (prepared == null)
+		{
+			return CompletableFuture.completedFuture(null);
+		}
+		String key = this.storeKey(prepared);
+		if (Objects.isNull(key))
+		{
+			return this.renderAsync(prepared, null, context);
+		}
+		return CompletableFuture.supplyAsync(() -> this.copyFromStore(prepared, key, context), this.ioExecutor)
+				.thenCompose(copied -> copied.booleanValue() ? CompletableFuture.<Void>completedFuture(null) : this.renderAsync(prepared, key, context));
+	}
+	
+	private CompletableFuture<Void> renderAsync(PreparedBill prepared, String key, GenerationContext context)
+	{
+		if (Objects.isNull(prepared.getInvoice()))
+		{
+			return CompletableFuture.supplyAsync(() -> this.render(prepared, context), this.renderExecutor).thenAcceptAsync(document ->
+			{
+				this.putIntoStore(prepared, key, document);
+				this.writeFile(prepared, document, document, context);
+			}, this.ioExecutor);
+		}
+		if (prepared.getAppendMode() != AppendMode.MEMORY)
+		{
+			return CompletableFuture.runAsync(() ->
+			{
+				this.appendToInvoice(prepared, context);
+				this.putIntoStore(prepared, key, context);
+			}, this.ioExecutor);
+		}
+		return CompletableFuture.supplyAsync(() -> this.loadInvoice(prepared, context), this.ioExecutor).thenComposeAsync(invoice ->
+		{
+			byte[] document = invoice == null ? null : this.render(prepared, invoice, context);
+			if (document == null)
+			{
+				return CompletableFuture.completedFuture(null);
+			}
+			return CompletableFuture.runAsync(() ->
+			{
+				this.putIntoStore(prepared, key, document);
+				this.writeFile(prepared, document, invoice, context);
+			}, this.ioExecutor);
+		}, this.renderExecutor);
+	}
+	
+	/*
+	 * Writes the generated document directly to the given stream instead of
+	 * path.output, which is not needed in this case. The returned json holds
+	 * the usual result, errors and file metadata, but never the document
+	 * itself. The stream is not closed.
+	 */
+	public String generate(JsonNode sourceNode, OutputStream os)
+	{
+		GenerationContext context = new GenerationContext(this.mapper);
+		ObjectNode targetNode = context.getTargetNode();
+		BillRequest request = this.readRequest(sourceNode, context);
+		if (request == null)
+		{
+			targetNode.put("result", "ERROR");
+			context.report(this.metricsListener);
+			return context.toJson();
+		}
+		PreparedBill prepared = this.prepare(request, context, false);
+		if (prepared == null)
+		{
+			targetNode.put("result", "ERROR");
+			context.report(this.metricsListener);
+			return context.toJson();
+		}
+		ValidationResult validation = QRBill.validate(prepared.getBill());
+		context.lap(Stage.VALIDATION);
+		this.addValidationErrors(validation, prepared.getId(), context);
+		if (prepared.isDryRun())
+		{
+			targetNode.put("result", context.hasErrors() ? "ERROR" : "OK");
+			return context.toJson();
+		}
+		if (validation.isValid() && !context.hasErrors())
+		{
+			if (!Objects.isNull(prepared.getInvoice()) && !prepared.getInvoice().toFile().exists())
+			{
+				context.addErrorNode(prepared.getId(), "Die Quelldatei existiert nicht. Sie muss für die Verarbeitung vorhanden sein.");
+			}
+			else
 			{
-				String invoicePathname = sourcePathNode.get("invoice").asText();
 				try
 				{
-					invoice = adaptFilePathname(invoicePathname, this.mapper);
-					targetPathNode.put("invoice", invoice.toString());
+					DocumentOutputStream dos = new DocumentOutputStream(os, prepared.getHashAlgorithm());
+					this.writeDocument(prepared, dos, context);
+					dos.flush();
+					context.lap(Stage.FILE_WRITE);
+					targetNode.put("result", "OK");
+					ObjectNode targetFileNode = targetNode.putObject("file");
+					targetFileNode.put("name", this.buildFileName(targetNode, prepared.getGraphicsFormat()));
+					targetFileNode.put("size", dos.getSize());
+					if (!Objects.isNull(prepared.getHashAlgorithm()))
+					{
+						targetFileNode.put("hash", toHex(dos.getHash()));
+					}
+					context.setBytesWritten(dos.getSize());
+					context.report(this.metricsListener);
+					return context.toJson();
 				}
-				catch (Exception e)
+				catch (IOException e)
 				{
-					this.addErrorNode(id, "Falls die QRBill an ein bestehendes Dokument angefügt werden soll, so muss dieses Dokument bereits bestehen und einen gültigen Namen haben.");
+					context.addErrorNode(prepared.getId(), "Das Dokument konnte nicht in den Ausgabestrom geschrieben werden (" + e.getLocalizedMessage() + ").");
 				}
 			}
-
-			// Setup bill
-			Bill bill = new Bill();
-			
-			/*
-			 **************************************************
-			 * 
-			 * Bill Format setzen
-			 * 
-			 **************************************************
-			 */
-			BillFormat format = new BillFormat();
-			ObjectNode targetFormNode = this.targetNode.putObject("form");
-			format.setLanguage(guessLanguage(sourceNode.get("form"), targetFormNode));
-			GraphicsFormat graphicsFormat = selectGraphicsFormat(sourceNode.get("form"), targetFormNode);
+		}
+		targetNode.put("result", "ERROR");
+		context.report(this.metricsListener);
+		return context.toJson();
+	}
+	
+	public String generate(JsonNode sourceNode, WritableByteChannel channel)
+	{
+		return this.generate(sourceNode, Channels.newOutputStream(channel));
+	}
+	
+	private void writeDocument(PreparedBill prepared, OutputStream os, GenerationContext context) throws IOException
+	{
+		Canvas canvas = null;
+		try
+		{
+			if (Objects.isNull(prepared.getInvoice()))
+			{
+				canvas = CanvasFactory.createCanvas(prepared.getBill().getFormat(), prepared.getCompressionLevel());
+			}
+			else if (prepared.getAppendMode() != AppendMode.MEMORY)
+			{
+				this.appendToInvoice(prepared, os, context);
+				return;
+			}
+			else
+			{
+				canvas = new PDFCanvas(prepared.getInvoice(), PDFCanvas.LAST_PAGE);
+				context.lap(Stage.INVOICE_LOADING);
+			}
+			this.drawingCache.draw(prepared.getBill(), canvas);
+			context.lap(Stage.RENDERING);
+			if (prepared.isCompact())
+			{
+				ByteArrayOutputStream document = new ByteArrayOutputStream();
+				CanvasFactory.writeTo(canvas, document);
+				os.write(CompactPDFWriter.compact(document.toByteArray()));
+			}
+			else
+			{
+				CanvasFactory.writeTo(canvas, os);
+			}
+			context.lap(Stage.FILE_WRITE);
+		}
+		finally
+		{
+			if (canvas != null)
+			{
+				canvas.close();
+			}
+		}
+	}
+	
+	/*
+	 * Does what QRBill.generate does, but draws through the drawing cache.
+	 */
+	private byte[] render(Bill bill, int compressionLevel)
+	{
+		try
+		{
+			Canvas canvas = CanvasFactory.createCanvas(bill.getFormat(), compressionLevel);
+			try
+			{
+				this.drawingCache.draw(bill, canvas);
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				CanvasFactory.writeTo(canvas, os);
+				return bill.getFormat().getGraphicsFormat() == GraphicsFormat.PDF ? ReproduciblePDF.fixId(os.toByteArray()) : os.toByteArray();
+			}
+			finally
+			{
+				canvas.close();
+			}
+		}
+		catch (IOException e)
+		{
+			throw new QRBillGenerationException(e);
+		}
+	}
+	
+	private void appendToInvoiceFile(PreparedBill prepared, GenerationContext context) throws IOException
+	{
+		Path path = prepared.getPath();
+		boolean sameFile = path.toFile().exists() && Files.isSameFile(path, prepared.getInvoice());
+		if (sameFile && prepared.getAppendMode() == AppendMode.INCREMENTAL)
+		{
+			this.appendInPlace(prepared, context);
+			return;
+		}
+		Path target = sameFile ? Files.createTempFile(path.toAbsolutePath().getParent(), "qrbill", ".tmp") : path;
+		try
+		{
+			OutputStream os = new BufferedOutputStream(replaceFile(target));
 			try
 			{
-				format.setFontFamily("Arial");
-				format.setGraphicsFormat(graphicsFormat);
+				this.appendToInvoice(prepared, os, context);
+			}
+			finally
+			{
+				os.close();
+			}
+			if (sameFile)
+			{
+				Files.move(target, path, StandardCopyOption.REPLACE_EXISTING);
 			}
-			catch (IllegalArgumentException e)
+			context.lap(Stage.FILE_WRITE);
+		}
+		finally
+		{
+			if (sameFile)
 			{
-				this.addErrorNode("form.graphics_format", buildGraphicsFormatErrorMessage());
+				Files.deleteIfExists(target);
 			}
+		}
+	}
+	
+	/*
+	 * An incremental update of the invoice itself is appended to the file,
+	 * the bytes of the invoice are neither copied nor rewritten. If writing
+	 * fails, the file is cut back to its original length.
+	 */
+	private void appendInPlace(PreparedBill prepared, GenerationContext context) throws IOException
+	{
+		Path path = prepared.getPath();
+		this.breakLinks(path);
+		long length = Files.size(path);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+		try
+		{
+			channel.position(length);
+			OutputStream os = new OffsetOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)), length);
 			try
 			{
-				format.setOutputSize(selectOutputSize(invoice, sourceNode.get("form"), targetFormNode));
+				this.appendToInvoice(prepared, os, context);
+				os.flush();
 			}
-			catch (IllegalArgumentException e)
+			catch (IOException | RuntimeException e)
 			{
-				this.addErrorNode("form.output_size", buildOutputSizeErrorMessage());
+				channel.truncate(length);
+				throw e;
 			}
-			bill.setFormat(format);
-			
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+	
+	/*
+	 * Opens a new file in place of path. The old file is removed, not
+	 * truncated, so a hard link to it, e.g. the entry of the document store
+	 * path.output was linked to, keeps its content.
+	 */
+	private static OutputStream replaceFile(Path path) throws IOException
+	{
+		Files.deleteIfExists(path);
+		return OutputDirectories.newOutputStream(path);
+	}
+	
+	/*
+	 * A file with more than one hard link, e.g. one linked from the document
+	 * store, shares its bytes with the other links. It is replaced by a copy
+	 * before it is written in place. Where the number of links is not known,
+	 * this is done if there is a document store.
+	 */
+	private void breakLinks(Path path) throws IOException
+	{
+		Object links = null;
+		try
+		{
+			links = Files.getAttribute(path, "unix:nlink");
+		}
+		catch (UnsupportedOperationException | IllegalArgumentException e)
+		{
 			/*
-			 **************************************************
-			 * 
-			 * Bill Betrag setzen, falls nicht 0
-			 * 
-			 **************************************************
+			 * No unix attributes on this file system.
 			 */
-			if (sourceNode.get("amount") != null && sourceNode.get("amount").asDouble() > 0D)
+		}
+		if (links instanceof Integer ? ((Integer) links).intValue() <= 1 : Objects.isNull(this.documentStore))
+		{
+			return;
+		}
+		Path copy = Files.createTempFile(path.toAbsolutePath().getParent(), "qrbill", ".tmp");
+		try
+		{
+			Files.copy(path, copy, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(copy, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally
+		{
+			Files.deleteIfExists(copy);
+		}
+	}
+	
+	/*
+	 * The invoice is read file backed within the configured memory budget,
+	 * so large invoices are neither copied into a byte array nor held on
+	 * the heap as a whole.
+	 */
+	private void appendToInvoice(PreparedBill prepared, OutputStream os, GenerationContext context) throws IOException
+	{
+		PDDocument document = PDDocument.load(prepared.getInvoice().toFile(), this.memoryUsage);
+		context.lap(Stage.INVOICE_LOADING);
+		try
+		{
+			PDPage page = document.getPage(document.getNumberOfPages() - 1);
+			if (prepared.getAppendMode() == AppendMode.INCREMENTAL && !page.getCOSObject().containsKey(COSName.RESOURCES) && !Objects.isNull(page.getResources()))
+			{
+				/*
+				 * Inherited resources get the fonts of the bill, so the page
+				 * takes them over and they are written with the page.
+				 */
+				page.setResources(page.getResources());
+			}
+			PDFDocumentCanvas canvas = new PDFDocumentCanvas(document, PDFDocumentCanvas.LAST_PAGE);
+			try
+			{
+				this.drawingCache.draw(prepared.getBill(), canvas);
+			}
+			finally
+			{
+				canvas.close();
+			}
+			context.lap(Stage.RENDERING);
+			if (prepared.getAppendMode() == AppendMode.INCREMENTAL)
+			{
+				document.saveIncremental(os, changedObjects(page));
+			}
+			else if (prepared.isCompact())
+			{
+				CompactPDFWriter.write(document, os);
+			}
+			else
 			{
-				bill.setAmountFromDouble(Double.valueOf(sourceNode.get("amount").asDouble()));
-				this.targetNode.put("amount", bill.getAmountAsDouble());
+				document.save(os);
 			}
-			
+			context.lap(Stage.FILE_WRITE);
+		}
+		finally
+		{
+			document.close();
+		}
+	}
+	
+	/*
+	 * The existing objects an incremental update has to contain after the
+	 * bill is drawn on the page: the page with its new content array and
+	 * the resources and font dictionary if they are referenced indirectly.
+	 * New objects (the content streams, the fonts) are written anyway.
+	 */
+	private static Set<COSDictionary> changedObjects(PDPage page)
+	{
+		Set<COSDictionary> objects = new HashSet<COSDictionary>();
+		objects.add(page.getCOSObject());
+		COSBase resources = page.getCOSObject().getItem(COSName.RESOURCES);
+		if (resources instanceof COSObject && ((COSObject) resources).getObject() instanceof COSDictionary)
+		{
+			objects.add((COSDictionary) ((COSObject) resources).getObject());
+		}
+		COSDictionary resourcesDictionary = page.getCOSObject().getCOSDictionary(COSName.RESOURCES);
+		COSBase fonts = Objects.isNull(resourcesDictionary) ? null : resourcesDictionary.getItem(COSName.FONT);
+		if (fonts instanceof COSObject && ((COSObject) fonts).getObject() instanceof COSDictionary)
+		{
+			objects.add((COSDictionary) ((COSObject) fonts).getObject());
+		}
+		return objects;
+	}
+	
+	/*
+	 * Generates the bills of a json array. Each item is processed on its own,
+	 * the result is a json array with the same result/errors structure per
+	 * item as returned by generate(String).
+	 */
+	public String generateBatch(String json)
+	{
+		GenerationContext context = new GenerationContext(this.mapper);
+		JsonNode sourceNode = this.checkParameter(json, context);
+		if (sourceNode != null && !sourceNode.isArray())
+		{
+			context.addErrorNode("Parameter", "Der übergebene Parameter muss für die Stapelverarbeitung ein Json Array sein.");
+		}
+		if (sourceNode == null || context.hasErrors())
+		{
+			context.getTargetNode().put("result", "ERROR");
+			return context.toJson();
+		}
+		List<JsonNode> items = new ArrayList<JsonNode>(sourceNode.size());
+		sourceNode.forEach(items::add);
+		ArrayNode resultNode = this.mapper.createArrayNode();
+		resultNode.addAll(BatchTask.invoke(this.pool, items, this::generateItem));
+		return resultNode.toString();
+	}
+	
+	public List<String> generateBatch(List<String> jsons)
+	{
+		return BatchTask.invoke(this.pool, jsons, this::generateItem);
+	}
+	
+	/*
+	 * Reads newline delimited json requests from is and writes one result line
+	 * per request to os, in the order of the requests. Only a bounded number
+	 * of requests is held in memory at any time. Returns the number of
+	 * processed requests.
+	 */
+	public long generateStream(InputStream is, OutputStream os) throws IOException
+	{
+		return new StreamingJob(this.pool, this::generateItem, this.streamWindow).run(is, os);
+	}
+	
+	/*
+	 * Renders the bills of a print run into a single pdf document written to
+	 * path.output, one bill per page. The pages share their resources, so
+	 * the fonts and the separators are contained only once in the document.
+	 * If one of the bills is invalid, no document is written; the errors of
+	 * each bill are returned in 'bills'.
+	 */
+	public String generatePrintRun(String json)
+	{
+		GenerationContext context = new GenerationContext(this.mapper);
+		try
+		{
+			this.generatePrintRun(json, context);
+		}
+		finally
+		{
+			context.reportPrintRun(this.metricsListener);
+		}
+		return context.toJson();
+	}
+	
+	private void generatePrintRun(String json, GenerationContext context)
+	{
+		ObjectNode targetNode = context.getTargetNode();
+		JsonNode sourceNode = this.checkParameter(json, context);
+		if (sourceNode != null && (Objects.isNull(sourceNode.get("bills")) || !sourceNode.get("bills").isArray()))
+		{
+			context.addErrorNode("Parameter", "'bills' muss für einen Druckauftrag ein Json Array mit den Rechnungen enthalten.");
+		}
+		if (sourceNode == null || context.hasErrors())
+		{
+			targetNode.put("result", "ERROR");
+			return;
+		}
+		JsonNode optionsNode = sourceNode.get("options");
+		boolean dryRun = !Objects.isNull(optionsNode) && optionsNode.path("dry_run").asBoolean(false);
+		context.setDryRun(dryRun);
+		Path path = null;
+		try
+		{
+			path = adaptFilePathname(sourceNode.get("path").get("output").asText(), !dryRun);
+			targetNode.putObject("path").put("output", path.toString());
+		}
+		catch (Exception e)
+		{
+			context.addErrorNode("path.output", "Der Pfad für die generierte Daten muss gültig sein (Systempfad oder URI).");
+		}
+		boolean payload = Objects.isNull(optionsNode) || Objects.isNull(optionsNode.get("payload")) || optionsNode.get("payload").asBoolean(true);
+		boolean compact = Objects.isNull(optionsNode) || Objects.isNull(optionsNode.get("compact")) || optionsNode.get("compact").isNull() ? this.compactPdf : optionsNode.get("compact").asBoolean(false);
+		String hashAlgorithm = Objects.isNull(optionsNode) || Objects.isNull(optionsNode.get("hash")) || optionsNode.get("hash").asText().trim().isEmpty() ? null : optionsNode.get("hash").asText().trim();
+		if (!Objects.isNull(hashAlgorithm) && !RequestValidator.isHashAlgorithm(hashAlgorithm))
+		{
+			context.addErrorNode("options.hash", RequestField.HASH.getMessage());
+			hashAlgorithm = null;
+		}
+
+		List<PreparedBill> bills = new ArrayList<PreparedBill>(sourceNode.get("bills").size());
+		ArrayNode targetBillsNode = targetNode.putArray("bills");
+		boolean valid = true;
+		for (JsonNode sourceBillNode : sourceNode.get("bills"))
+		{
+			GenerationContext billContext = new GenerationContext(this.mapper);
+			PreparedBill prepared = this.preparePrintRunBill(sourceBillNode, billContext);
+			billContext.getTargetNode().put("result", billContext.hasErrors() ? "ERROR" : "OK");
+			targetBillsNode.add(billContext.getTargetNode());
+			valid = valid && !billContext.hasErrors();
+			bills.add(prepared);
+		}
+		if (!valid || context.hasErrors())
+		{
+			targetNode.put("result", "ERROR");
+			return;
+		}
+		if (dryRun)
+		{
+			targetNode.put("result", "OK");
+			return;
+		}
+
+		PrintRun printRun = new PrintRun(this.memoryUsage, this.drawingCache);
+		try
+		{
+			for (PreparedBill prepared : bills)
+			{
+				printRun.add(prepared.getBill());
+			}
+			try (OutputStream os = new BufferedOutputStream(replaceFile(path)))
+			{
+				printRun.save(os, compact);
+			}
+			context.lap(Stage.FILE_WRITE);
+			context.setBytesWritten(Files.size(path));
+			targetNode.put("result", "OK");
+			ObjectNode targetFileNode = this.putFileNode(targetNode, path.getFileName().toString(), payload ? Files.readAllBytes(path) : null, path, hashAlgorithm);
+			targetFileNode.put("pages", printRun.getNumberOfPages());
+			return;
+		}
+		catch (IOException e)
+		{
+			context.addErrorNode("path.output", "Der Druckauftrag konnte nicht in die Zieldatei '" + path.toString() + "' geschrieben werden (" + e.getLocalizedMessage() + ").");
+		}
+		finally
+		{
+			try
+			{
+				printRun.close();
+			}
+			catch (IOException e)
+			{
+			}
+		}
+		targetNode.put("result", "ERROR");
+	}
+	
+	private PreparedBill preparePrintRunBill(JsonNode sourceNode, GenerationContext context)
+	{
+		try
+		{
+			BillRequest request = this.readRequest(sourceNode, context);
+			if (request == null)
+			{
+				return null;
+			}
+			PreparedBill prepared = this.prepare(request, context, false);
+			if (prepared == null)
+			{
+				return null;
+			}
+			if (!Objects.isNull(prepared.getInvoice()))
+			{
+				context.addErrorNode(prepared.getId(), "Die QRBills eines Druckauftrags können nicht an ein bestehendes Dokument angefügt werden.");
+			}
+			if (!Objects.isNull(prepared.getGraphicsFormat()) && prepared.getGraphicsFormat() != GraphicsFormat.PDF)
+			{
+				context.addErrorNode("form.graphics_format", "'graphics_format' muss für einen Druckauftrag PDF sein.");
+			}
+			if (!QRBill.validate(prepared.getBill()).isValid())
+			{
+				context.addErrorNode(prepared.getId(), "Die Daten der QRBill sind ungültig.");
+			}
+			return prepared;
+		}
+		catch (RuntimeException e)
+		{
+			context.addErrorNode("Parameter", "Bei der Verarbeitung ist ein unerwarteter Fehler aufgetreten (" + e.getLocalizedMessage() + ").");
+			return null;
+		}
+	}
+	
+	private String generateItem(String json)
+	{
+		GenerationContext context = new GenerationContext(this.mapper);
+		BillRequest request = this.readRequest(json, context);
+		if (request == null)
+		{
+			context.getTargetNode().put("result", "ERROR");
+		}
+		else
+		{
+			this.generateItem(request, context);
+		}
+		context.report(this.metricsListener);
+		return context.toJson();
+	}
+	
+	private ObjectNode generateItem(JsonNode sourceNode)
+	{
+		GenerationContext context = new GenerationContext(this.mapper);
+		BillRequest request = this.readRequest(sourceNode, context);
+		if (request == null)
+		{
+			context.getTargetNode().put("result", "ERROR");
+		}
+		else
+		{
+			this.generateItem(request, context);
+		}
+		context.report(this.metricsListener);
+		return context.getResultNode();
+	}
+	
+	/*
+	 * A failing item must not abort the other items of a batch, so unexpected
+	 * exceptions end up in the errors of the item itself.
+	 */
+	private void generateItem(BillRequest request, GenerationContext context)
+	{
+		try
+		{
+			this.generate(request, context);
+		}
+		catch (RuntimeException e)
+		{
+			context.addErrorNode("Parameter", "Bei der Verarbeitung ist ein unerwarteter Fehler aufgetreten (" + e.getLocalizedMessage() + ").");
+			context.getTargetNode().put("result", "ERROR");
+		}
+	}
+	
+	private void generate(BillRequest request, GenerationContext context)
+	{
+		PreparedBill prepared = this.check(request, context);
+		if (prepared == null)
+		{
+			return;
+		}
+		String key = this.storeKey(prepared);
+		if (this.copyFromStore(prepared, key, context))
+		{
+			return;
+		}
+		if (Objects.isNull(prepared.getInvoice()))
+		{
+			byte[] document = this.render(prepared, context);
+			this.putIntoStore(prepared, key, document);
+			this.writeFile(prepared, document, document, context);
+		}
+		else if (prepared.getAppendMode() != AppendMode.MEMORY)
+		{
+			this.appendToInvoice(prepared, context);
+			this.putIntoStore(prepared, key, context);
+		}
+		else
+		{
+			byte[] invoice = this.loadInvoice(prepared, context);
+			byte[] document = invoice == null ? null : this.render(prepared, invoice, context);
+			if (document != null)
+			{
+				this.putIntoStore(prepared, key, document);
+				this.writeFile(prepared, document, invoice, context);
+			}
+		}
+	}
+	
+	/*
+	 * The key of the bill in the document store, null if there is no store
+	 * or the bill is not stored.
+	 */
+	private String storeKey(PreparedBill prepared)
+	{
+		if (Objects.isNull(this.documentStore) || Objects.isNull(prepared.getPath()))
+		{
+			return null;
+		}
+		try
+		{
+			return this.documentStore.key(prepared);
+		}
+		catch (IOException e)
+		{
 			/*
-			 **************************************************
-			 * 
-			 * Bill Währung setzen
-			 * 
-			 **************************************************
+			 * The invoice cannot be read, which is reported when rendering.
 			 */
-			bill.setCurrency(this.checkCurrency(sourceNode.get("currency")));
-			this.targetNode.put("currency", bill.getCurrency());
-			
+			return null;
+		}
+	}
+	
+	/*
+	 * A bill found in the document store is copied (or linked) to
+	 * path.output instead of being rendered. Returns true if the result is
+	 * complete then; if copying fails, the bill is rendered as usual.
+	 */
+	private boolean copyFromStore(PreparedBill prepared, String key, GenerationContext context)
+	{
+		if (Objects.isNull(key))
+		{
+			return false;
+		}
+		Path entry = this.documentStore.find(key, prepared.getGraphicsFormat());
+		if (Objects.isNull(entry))
+		{
+			return false;
+		}
+		ObjectNode targetNode = context.getTargetNode();
+		Path path = prepared.getPath();
+		try
+		{
 			/*
-			 **************************************************
-			 * 
-			 * Bill IBAN setzen
-			 * 
-			 **************************************************
+			 * Appending in memory returns the invoice as it was read, which
+			 * may be path.output itself.
 			 */
-			String iban = null;
+			byte[] payload = null;
+			if (prepared.isPayload() && !Objects.isNull(prepared.getInvoice()) && prepared.getAppendMode() == AppendMode.MEMORY)
+			{
+				payload = Files.readAllBytes(prepared.getInvoice());
+			}
+			this.documentStore.copy(entry, path);
+			context.lap(Stage.FILE_WRITE);
+			if (prepared.isPayload() && Objects.isNull(payload))
+			{
+				payload = Files.readAllBytes(path);
+			}
+			context.setBytesWritten(Files.size(path));
+			targetNode.put("result", "OK");
+			this.putFileNode(targetNode, this.buildFileName(targetNode, prepared.getGraphicsFormat()), payload, path, prepared.getHashAlgorithm());
+			return true;
+		}
+		catch (IOException e)
+		{
+			targetNode.remove("file");
+			return false;
+		}
+	}
+	
+	private void putIntoStore(PreparedBill prepared, String key, byte[] document)
+	{
+		if (!Objects.isNull(key))
+		{
 			try
 			{
-				JsonNode ibanNode = sourceNode.get("iban");
-				if (Objects.isNull(ibanNode) || ibanNode.asText().trim().isEmpty())
-				{
-					throw new NullPointerException("'iban' muss die IBAN oder QR-IBAN des Rechnungstellers enthalten.");
-				}
-				iban = ibanNode.asText();
-				bill.setAccount(iban);
-				this.targetNode.put("iban", iban);
+				this.documentStore.put(key, prepared.getGraphicsFormat(), document);
 			}
-			catch (NullPointerException e)
+			catch (IOException e)
 			{
-				this.addErrorNode(id, e.getLocalizedMessage());
+				/*
+				 * The store only saves work, the bill is written anyway.
+				 */
 			}
-			
-			/*
-			 **************************************************
-			 * 
-			 * Bill Referenz setzen
-			 * 
-			 **************************************************
-			 */
-			if (!Objects.isNull(iban) && iban.length() > 6)
+		}
+	}
+	
+	/*
+	 * The append mode FILE writes path.output directly, it is stored if
+	 * that succeeded.
+	 */
+	private void putIntoStore(PreparedBill prepared, String key, GenerationContext context)
+	{
+		if (!Objects.isNull(key) && context.getTargetNode().path("result").asText().equals("OK"))
+		{
+			try
+			{
+				this.documentStore.put(key, prepared.getGraphicsFormat(), prepared.getPath());
+			}
+			catch (IOException e)
+			{
+				/*
+				 * The store only saves work, the bill is written anyway.
+				 */
+			}
+		}
+	}
+	
+	/*
+	 * Maps and validates the request. Returns null if the result is complete
+	 * already, i.e. the request is invalid or a dry run.
+	 */
+	private PreparedBill check(BillRequest request, GenerationContext context)
+	{
+		ObjectNode targetNode = context.getTargetNode();
+		PreparedBill prepared = this.prepare(request, context, true);
+		if (prepared == null)
+		{
+			targetNode.put("result", "ERROR");
+			return null;
+		}
+		ValidationResult validation = QRBill.validate(prepared.getBill());
+		context.lap(Stage.VALIDATION);
+		this.addValidationErrors(validation, prepared.getId(), context);
+		if (prepared.isDryRun())
+		{
+			targetNode.put("result", context.hasErrors() ? "ERROR" : "OK");
+			return null;
+		}
+		if (!validation.isValid() || context.hasErrors())
+		{
+			targetNode.put("result", "ERROR");
+			return null;
+		}
+		return prepared;
+	}
+	
+	/*
+	 * Reads the invoice for append mode MEMORY. Returns null if it cannot be
+	 * read, the error is added then.
+	 */
+	private byte[] loadInvoice(PreparedBill prepared, GenerationContext context)
+	{
+		Path invoice = prepared.getInvoice();
+		if (!invoice.toFile().exists())
+		{
+			context.addErrorNode(prepared.getId(), "Die Quelldatei existiert nicht. Sie muss für die Verarbeitung vorhanden sein.");
+			context.getTargetNode().put("result", "ERROR");
+			return null;
+		}
+		try
+		{
+			byte[] bytes = Files.readAllBytes(invoice);
+			context.lap(Stage.INVOICE_LOADING);
+			return bytes;
+		}
+		catch (IOException e)
+		{
+			context.addErrorNode(prepared.getId(), "Das Dokument, an das die QRBill angehängt werden soll, konnte nicht geöffnet werden.");
+			context.getTargetNode().put("result", "ERROR");
+			return null;
+		}
+	}
+	
+	private byte[] render(PreparedBill prepared, GenerationContext context)
+	{
+		byte[] bytes = this.compact(prepared, this.render(prepared.getBill(), prepared.getCompressionLevel()));
+		context.lap(Stage.RENDERING);
+		return bytes;
+	}
+	
+	private byte[] compact(PreparedBill prepared, byte[] document)
+	{
+		if (!prepared.isCompact())
+		{
+			return document;
+		}
+		try
+		{
+			return CompactPDFWriter.compact(document);
+		}
+		catch (IOException e)
+		{
+			throw new QRBillGenerationException(e);
+		}
+	}
+	
+	/*
+	 * Draws the bill onto the last page of the invoice. Returns null if the
+	 * invoice cannot be opened, the error is added then.
+	 */
+	private byte[] render(PreparedBill prepared, byte[] invoice, GenerationContext context)
+	{
+		PDFCanvas canvas = null;
+		try
+		{
+			canvas = new PDFCanvas(invoice, PDFCanvas.LAST_PAGE);
+			context.lap(Stage.INVOICE_LOADING);
+			this.drawingCache.draw(prepared.getBill(), canvas);
+			byte[] bytes = this.compact(prepared, canvas.toByteArray());
+			context.lap(Stage.RENDERING);
+			return bytes;
+		}
+		catch (IOException e)
+		{
+			context.addErrorNode(prepared.getId(), "Das Dokument, an das die QRBill angehängt werden soll, konnte nicht geöffnet werden.");
+			context.getTargetNode().put("result", "ERROR");
+			return null;
+		}
+		finally
+		{
+			if (canvas != null)
 			{
-				String reference = null;
-				JsonNode referenceNode = sourceNode.get("reference");
-				if (iban.charAt(4) == '3' && (iban.charAt(5) == '0' || iban.charAt(5) == '1'))
+				try
 				{
-					try
-					{
-						if (Objects.isNull(referenceNode) || referenceNode.asText().trim().isEmpty())
-						{
-							throw new NullPointerException("'reference' muss eine 27-stellige Referenznummer sein, wenn QR-IBAN verwendet wird.");
-						}
-						reference = referenceNode.asText();
-						bill.createAndSetQRReference(reference);
-					}
-					catch (NullPointerException e)
-					{
-						this.addErrorNode(id, e.getLocalizedMessage());
-					}
+					canvas.close();
 				}
-				else
+				catch (IOException e)
 				{
-					if (!Objects.isNull(referenceNode) && referenceNode.asText().startsWith("RF"))
-					{
-						reference = referenceNode.asText();
-						bill.createAndSetCreditorReference(reference);
-					}
-					else
-					{
-						bill.setReferenceType(Bill.REFERENCE_TYPE_NO_REF);
-					}
 				}
-				this.targetNode.put("reference", bill.getReference());
 			}
+		}
+	}
 	
-			// Set creditor
-			JsonNode sourceCreditorNode = sourceNode.get("creditor");
-			ObjectNode targetCreditorNode = this.targetNode.putObject("creditor");
-			Address creditor = new Address();
+	/*
+	 * Writes the generated document to path.output and completes the
+	 * result. The payload returned is the document or, when appending in
+	 * memory, the invoice as it was read.
+	 */
+	private void writeFile(PreparedBill prepared, byte[] bytes, byte[] payload, GenerationContext context)
+	{
+		ObjectNode targetNode = context.getTargetNode();
+		Path path = prepared.getPath();
+		try 
+		{
+			OutputStream os = replaceFile(path);
 			try
 			{
-				creditor.setName(sourceCreditorNode.get("name").asText());
-				targetCreditorNode.put("name", creditor.getName());
+				os.write(bytes);
 			}
-			catch (NullPointerException e)
+			finally
 			{
-				this.addErrorNode(id, "'creditor.name' muss den Namen des Rechnungstellers enthalten (maximal 70 Buchstaben).");
+				os.close();
 			}
+			context.lap(Stage.FILE_WRITE);
+			context.setBytesWritten(bytes.length);
+			targetNode.put("result", "OK");
+			this.putFileNode(targetNode, this.buildFileName(targetNode, prepared.getGraphicsFormat()), prepared.isPayload() ? payload : null, path, prepared.getHashAlgorithm());
+			return;
+		} 
+		catch (IOException e) 
+		{
+			e.printStackTrace();
+			context.addErrorNode(prepared.getId(), "Beim Zugriff auf die Zieldatei '" + path.toString() + "' ist ein Fehler aufgetreten.");
+		} 
+		targetNode.put("result", "ERROR");
+	}
+	
+	/*
+	 * The append modes FILE and INCREMENTAL read and write the documents
+	 * file backed, so it is done in one step.
+	 */
+	private void appendToInvoice(PreparedBill prepared, GenerationContext context)
+	{
+		ObjectNode targetNode = context.getTargetNode();
+		Path invoice = prepared.getInvoice();
+		Path path = prepared.getPath();
+		if (!invoice.toFile().exists())
+		{
+			context.addErrorNode(prepared.getId(), "Die Quelldatei existiert nicht. Sie muss für die Verarbeitung vorhanden sein.");
+		}
+		else
+		{
 			try
 			{
-				creditor.setAddressLine1(sourceCreditorNode.get("address").asText());
-				targetCreditorNode.put("address", creditor.getAddressLine1());
+				this.appendToInvoiceFile(prepared, context);
+				context.setBytesWritten(Files.size(path));
+				targetNode.put("result", "OK");
+				this.putFileNode(targetNode, this.buildFileName(targetNode, prepared.getGraphicsFormat()), prepared.isPayload() ? Files.readAllBytes(path) : null, path, prepared.getHashAlgorithm());
+				return;
 			}
-			catch (NullPointerException e)
+			catch (IOException e)
 			{
-				this.addErrorNode(id, "'creditor.address' muss die Adresse des Rechnungstellers enthalten (maximal 70 Buchstaben).");
+				context.addErrorNode(prepared.getId(), "Die QRBill konnte nicht an das Dokument '" + invoice.toString() + "' angefügt werden (" + e.getLocalizedMessage() + ").");
 			}
+		}
+		targetNode.put("result", "ERROR");
+	}
+	
+	/*
+	 * The fields are checked with RequestValidator first, the mapping
+	 * below only takes the values that passed. Returns null if the request
+	 * is invalid and is checked with FAIL_FAST.
+	 */
+	private PreparedBill prepare(BillRequest request, GenerationContext context, boolean toFile)
+	{
+		ValidationMode mode = RequestValidator.selectMode(request);
+		if (!RequestValidator.validate(request, toFile, mode, context) && mode == ValidationMode.FAIL_FAST)
+		{
+			return null;
+		}
+		ObjectNode targetNode = context.getTargetNode();
+		String id = RequestField.INVOICE.isValid(request, toFile) ? request.invoice : null;
+		if (!Objects.isNull(id))
+		{
+			targetNode.put("invoice", id);
+		}
+
+		ObjectNode targetPathNode = targetNode.putObject("path");
+		Path path = null;
+		if (toFile && RequestField.Check.NOT_BLANK.test(request.output) && RequestField.PATH_OUTPUT.isValid(request, toFile))
+		{
 			try
 			{
-				creditor.setAddressLine2(sourceCreditorNode.get("city").asText());
-				targetCreditorNode.put("city", creditor.getAddressLine2());
+				path = adaptFilePathname(request.output, !request.dryRun);
+				
+				targetPathNode.put("output", path.toString());
 			}
-			catch (NullPointerException e)
+			catch (Exception e)
 			{
-				this.addErrorNode(id, "'creditor.city' muss Postleitzahl und Ort des Rechnungstellers enthalten (maximal 70 Buchstaben).");
+				context.addErrorNode(id, RequestField.PATH_OUTPUT.getMessage());
 			}
+		}
+		Path invoice = null;
+		if (!Objects.isNull(request.invoicePath) && !request.invoicePath.trim().isEmpty())
+		{
 			try
 			{
-				creditor.setCountryCode(sourceCreditorNode.get("country").asText());
-				targetCreditorNode.put("country", creditor.getCountryCode());
+				invoice = adaptFilePathname(request.invoicePath, !request.dryRun);
+				targetPathNode.put("invoice", invoice.toString());
 			}
-			catch (NullPointerException e)
+			catch (Exception e)
 			{
-				this.addErrorNode(id, "'creditor.country' muss den zweistelligen Landcode gemäss ISO 3166 des Rechnungstellers enthalten.");
+				context.addErrorNode(id, "Falls die QRBill an ein bestehendes Dokument angefügt werden soll, so muss dieses Dokument bereits bestehen und einen gültigen Namen haben.");
 			}
-			bill.setCreditor(creditor);
+		}
 
-			bill.setUnstructuredMessage(sourceNode.get("message").asText());
-			
-			// Set debtor
-			if (sourceNode.get("debtor") != null)
-			{
-				JsonNode sourceDebtorNode = sourceNode.get("debtor");
-				ObjectNode targetDebtorNode = this.targetNode.putObject("debtor");
-				Address debtor = new Address();
-				try
-				{
-					debtor.setName(sourceDebtorNode.get("name").asText());
-					targetDebtorNode.put("name", debtor.getName());
-				}
-				catch (NullPointerException e)
-				{
-					this.addErrorNode(id, "'debtor.name' muss den Namen des Rechnungempfängers enthalten (maximal 70 Buchstaben).");
-				}
-				try
-				{
-					debtor.setAddressLine1(sourceDebtorNode.get("address").asText());
-					targetDebtorNode.put("address", debtor.getAddressLine1());
-				}
-				catch (NullPointerException e)
-				{
-					this.addErrorNode(id, "'debtor.address' muss die Adresse des Rechnungsempfängers enthalten (maximal 70 Buchstaben).");
-				}
-				try
-				{
-					debtor.setAddressLine2(sourceDebtorNode.get("city").asText());
-					targetDebtorNode.put("city", debtor.getAddressLine2());
-				}
-				catch (NullPointerException e)
+		/*
+		 **************************************************
+		 * 
+		 * Optionen für die Rückgabe
+		 * 
+		 **************************************************
+		 */
+		boolean payload = Objects.isNull(request.payload) || request.payload.booleanValue();
+		String hashAlgorithm = selectHashAlgorithm(request);
+		AppendMode appendMode = selectAppendMode(request);
+		if (request.timings)
+		{
+			context.enableTimings();
+		}
+
+		// Setup bill
+		Bill bill = new Bill();
+		
+		/*
+		 **************************************************
+		 * 
+		 * Bill Format setzen
+		 * 
+		 **************************************************
+		 */
+		BillFormat format = new BillFormat();
+		ObjectNode targetFormNode = targetNode.putObject("form");
+		format.setLanguage(guessLanguage(request.language, targetFormNode));
+		format.setFontFamily(FontCache.DEFAULT_FONT);
+		GraphicsFormat graphicsFormat = selectGraphicsFormat(request, targetFormNode);
+		if (!Objects.isNull(graphicsFormat))
+		{
+			format.setGraphicsFormat(graphicsFormat);
+		}
+		format.setOutputSize(selectOutputSize(invoice, request, targetFormNode));
+		if (RequestField.Check.NOT_BLANK.test(request.resolution) && RequestField.RESOLUTION.isValid(request, false))
+		{
+			format.setResolution(Integer.parseInt(request.resolution.trim()));
+			targetFormNode.put("resolution", format.getResolution());
+		}
+		int compressionLevel = this.selectCompressionLevel(request, targetFormNode);
+		boolean compact = graphicsFormat == GraphicsFormat.PDF && (Objects.isNull(request.compact) ? this.compactPdf : request.compact.booleanValue());
+		bill.setFormat(format);
+		if (toFile && !RequestField.Check.NOT_BLANK.test(request.output) && RequestField.PATH_OUTPUT.isValid(request, toFile) && !Objects.isNull(id) && !Objects.isNull(graphicsFormat))
+		{
+			try
+			{
+				path = this.buildOutputPath(request, id, graphicsFormat);
+				targetPathNode.put("output", path.toString());
+			}
+			catch (Exception e)
+			{
+				context.addErrorNode(id, RequestField.PATH_OUTPUT.getMessage());
+			}
+		}
+		
+		/*
+		 **************************************************
+		 * 
+		 * Bill Betrag setzen, falls nicht 0
+		 * 
+		 **************************************************
+		 */
+		if (request.amount != null && request.amount.doubleValue() > 0D)
+		{
+			bill.setAmountFromDouble(request.amount);
+			targetNode.put("amount", bill.getAmountAsDouble());
+		}
+		
+		/*
+		 **************************************************
+		 * 
+		 * Bill Währung setzen
+		 * 
+		 **************************************************
+		 */
+		bill.setCurrency(this.checkCurrency(request.currency));
+		targetNode.put("currency", bill.getCurrency());
+		
+		/*
+		 **************************************************
+		 * 
+		 * Bill IBAN setzen
+		 * 
+		 **************************************************
+		 */
+		String iban = null;
+		if (RequestField.IBAN.isValid(request, toFile))
+		{
+			iban = request.iban;
+			bill.setAccount(iban);
+			targetNode.put("iban", iban);
+		}
+		
+		/*
+		 **************************************************
+		 * 
+		 * Bill Referenz setzen
+		 * 
+		 **************************************************
+		 */
+		if (!Objects.isNull(iban) && iban.length() > 6)
+		{
+			if (RequestValidator.isQRIban(iban))
+			{
+				if (RequestField.REFERENCE.isValid(request, toFile))
 				{
-					this.addErrorNode(id, "'debtor.city' muss Postleitzahl und Ort des Rechnungsempfängers enthalten (maximal 70 Buchstaben).");
+					bill.createAndSetQRReference(request.reference);
 				}
-				try
+			}
+			else
+			{
+				if (!Objects.isNull(request.reference) && request.reference.startsWith("RF"))
 				{
-					debtor.setCountryCode(sourceDebtorNode.get("country").asText());
-					targetDebtorNode.put("country", debtor.getCountryCode());
+					bill.createAndSetCreditorReference(request.reference);
 				}
-				catch (NullPointerException e)
+				else
 				{
-					this.addErrorNode(id, "'debtor.country' muss den zweistelligen Landcode gemäss ISO 3166 des Rechnungsempfängers enthalten.");
+					bill.setReferenceType(Bill.REFERENCE_TYPE_NO_REF);
 				}
-				bill.setDebtor(debtor);
 			}
+			targetNode.put("reference", bill.getReference());
+		}
+
+		// Set creditor
+		ObjectNode targetCreditorNode = targetNode.putObject("creditor");
+		bill.setCreditor(this.mapAddress(request.creditor, targetCreditorNode));
+
+		bill.setUnstructuredMessage(request.message);
+		
+		// Set debtor
+		if (request.debtor != null)
+		{
+			ObjectNode targetDebtorNode = targetNode.putObject("debtor");
+			bill.setDebtor(this.mapAddress(request.debtor, targetDebtorNode));
+		}
+
+		context.lap(Stage.MAPPING);
+		PreparedBill prepared = new PreparedBill(id, bill, graphicsFormat, invoice, path, payload, hashAlgorithm, appendMode, request.dryRun, compressionLevel, compact);
+		context.setPrepared(prepared);
+		return prepared;
+	}
+	
+	/*
+	 * Missing fields have been reported by the validator and are left out.
+	 */
+	private Address mapAddress(BillRequest.Party party, ObjectNode targetNode)
+	{
+		Address address = new Address();
+		if (!Objects.isNull(party.name))
+		{
+			address.setName(party.name);
+			targetNode.put("name", address.getName());
+		}
+		if (!Objects.isNull(party.address))
+		{
+			address.setAddressLine1(party.address);
+			targetNode.put("address", address.getAddressLine1());
+		}
+		if (!Objects.isNull(party.city))
+		{
+			address.setAddressLine2(party.city);
+			targetNode.put("city", address.getAddressLine2());
+		}
+		if (!Objects.isNull(party.country))
+		{
+			address.setCountryCode(party.country);
+			targetNode.put("country", address.getCountryCode());
+		}
+		return address;
+	}
 	
-			// Validate QR bill
-			ValidationResult validation = QRBill.validate(bill);
-			if (validation.isValid() && Objects.isNull(this.targetNode.get("errors")))
+	/*
+	 * The errors of QRBill.validate are added only if the request itself has
+	 * passed, otherwise they would mostly repeat the errors of its missing
+	 * fields.
+	 */
+	private void addValidationErrors(ValidationResult validation, String id, GenerationContext context)
+	{
+		if (validation.hasErrors() && !context.hasErrors())
+		{
+			for (ValidationMessage message : validation.getValidationMessages())
 			{
-				if (!Objects.isNull(invoice))
-				{
-					if (invoice.toFile().exists())
-					{
-						PDFCanvas canvas = null;
-						try
-						{
-							byte[] targetArray = null;
-							InputStream is = null;
-							try
-							{
-								is = new FileInputStream(invoice.toFile());
-								targetArray = new byte[is.available()];
-								is.read(targetArray);
-							}
-							finally
-							{
-								if (is != null)
-								{
-									is.close();
-								}
-							}
-
-							canvas = new PDFCanvas(targetArray, PDFCanvas.LAST_PAGE);
-							QRBill.draw(bill, canvas);
-							this.targetNode.put("result", "OK");
-							ObjectNode targetFileNode = this.targetNode.putObject("file");
-							targetFileNode.put("qrbill", targetArray);
-							targetFileNode.put("name", "QRBill_" + this.targetNode.get("invoice").asText() + "." + graphicsFormat.name().toLowerCase());
-							targetFileNode.put("size", targetArray.length);
-							return this.targetNode.toString();
-						}
-						catch (IOException e)
-						{
-							this.addErrorNode(id, "Das Dokument, an das die QRBill angehängt werden soll, konnte nicht geöffnet werden.");
-						}
-						finally
-						{
-							if (canvas != null)
-							{
-								try
-								{
-									canvas.saveAs(path);
-									canvas.close();
-								}
-								catch (IOException e)
-								{
-									this.addErrorNode(id, "Die Zieldatei '" + invoice.toString() + "' kann nicht gespeichert werden.");
-								}
-							}
-						}
-					}
-					else
-					{
-						this.addErrorNode(id, "Die Quelldatei existiert nicht. Sie muss für die Verarbeitung vorhanden sein.");
-					}
-				}
-				else
+				if (message.getType() == ValidationMessage.Type.ERROR)
 				{
-					// Generate QR bill
-					byte[] bytes = QRBill.generate(bill);
-					try 
-					{
-						if (path.toFile().exists())
-						{
-							path.toFile().delete();
-						}
-						OutputStream os = null;
-						try
-						{
-							os = new FileOutputStream(path.toFile());
-							os.write(bytes);
-						}
-						catch ( Exception e)
-						{
-							e.printStackTrace();
-						}
-						finally
-						{
-							if (os != null)
-							{
-								os.flush();
-								os.close();
-							}
-						}
-						this.targetNode.put("result", "OK");
-						ObjectNode targetFileNode = this.targetNode.putObject("file");
-						targetFileNode.put("qrbill", bytes);
-						targetFileNode.put("name", "QRBill_" + this.targetNode.get("invoice").asText() + "." + graphicsFormat.name().toLowerCase());
-						targetFileNode.put("size", bytes.length);
-						return this.targetNode.toString();
-					} 
-					catch (FileNotFoundException e) 
-					{
-						this.addErrorNode(id, "Die Zieldatei kann nicht gefunden werden.");
-					} 
-					catch (IOException e) 
-					{
-						e.printStackTrace();
-						this.addErrorNode(id, "Beim Zugriff auf die Zieldatei '" + output.toString() + "' ist ein Fehler aufgetreten.");
-					} 
+					context.addErrorNode(id, "'" + message.getField() + "' ist ungültig (" + message.getMessageKey() + ").");
 				}
 			}
 		}
-		this.targetNode.put("result", "ERROR");
-		return this.targetNode.toString();
 	}
 	
-	private Language guessLanguage(JsonNode node, ObjectNode targetFormNode)
+	/*
+	 * Without payload only the metadata of the written file is returned, so
+	 * the document does not have to be held and encoded for the response.
+	 */
+	private ObjectNode putFileNode(ObjectNode targetNode, String name, byte[] payload, Path path, String hashAlgorithm) throws IOException
+	{
+		ObjectNode targetFileNode = targetNode.putObject("file");
+		if (!Objects.isNull(payload))
+		{
+			targetFileNode.put("qrbill", payload);
+		}
+		targetFileNode.put("name", name);
+		if (Objects.isNull(payload))
+		{
+			targetFileNode.put("size", Files.size(path));
+			targetFileNode.put("path", path.toString());
+		}
+		else
+		{
+			targetFileNode.put("size", payload.length);
+		}
+		if (!Objects.isNull(hashAlgorithm))
+		{
+			targetFileNode.put("hash", hash(path, hashAlgorithm));
+		}
+		return targetFileNode;
+	}
+	
+	private String buildFileName(ObjectNode targetNode, GraphicsFormat graphicsFormat)
+	{
+		return "QRBill_" + targetNode.get("invoice").asText() + "." + graphicsFormat.name().toLowerCase();
+	}
+	
+	private String hash(Path path, String hashAlgorithm) throws IOException
+	{
+		MessageDigest digest = null;
+		try
+		{
+			digest = MessageDigest.getInstance(hashAlgorithm);
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		InputStream is = Files.newInputStream(path);
+		try
+		{
+			byte[] buffer = new byte[8192];
+			int read = 0;
+			while ((read = is.read(buffer)) != -1)
+			{
+				digest.update(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			is.close();
+		}
+		return toHex(digest.digest());
+	}
+	
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder builder = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return builder.toString();
+	}
+	
+	/*
+	 * Invalid options have been reported by the validator, the defaults
+	 * are used instead.
+	 */
+	private String selectHashAlgorithm(BillRequest request)
+	{
+		if (!RequestField.Check.NOT_BLANK.test(request.hash) || !RequestField.HASH.isValid(request, false))
+		{
+			return null;
+		}
+		return request.hash.trim();
+	}
+	
+	private AppendMode selectAppendMode(BillRequest request)
+	{
+		if (!RequestField.Check.NOT_BLANK.test(request.appendMode) || !RequestField.APPEND_MODE.isValid(request, false))
+		{
+			return AppendMode.MEMORY;
+		}
+		return AppendMode.valueOf(request.appendMode.trim());
+	}
+	
+	private OutputLayout selectOutputLayout(BillRequest request)
+	{
+		if (!RequestField.Check.NOT_BLANK.test(request.layout) || !RequestField.LAYOUT.isValid(request, false))
+		{
+			return OutputLayout.HASHED;
+		}
+		return OutputLayout.valueOf(request.layout.trim());
+	}
+	
+	/*
+	 * path.output_root: the bill is written to the directory of the layout
+	 * below the root, which is created once per process.
+	 */
+	private Path buildOutputPath(BillRequest request, String id, GraphicsFormat graphicsFormat) throws Exception
+	{
+		Path root = adaptFilePathname(request.outputRoot, false);
+		Path directory = this.selectOutputLayout(request).resolve(root, id, LocalDate.now());
+		if (!request.dryRun)
+		{
+			OutputDirectories.create(directory.toFile());
+		}
+		return directory.resolve(OutputLayout.fileName(id, graphicsFormat));
+	}
+	
+	private Language guessLanguage(String requestedLanguage, ObjectNode targetFormNode)
 	{
 		Language language = null;
-		JsonNode languageNode = node.get("language");
-		if (languageNode != null && languageNode.asText() != null && !languageNode.asText().trim().isEmpty())
+		if (requestedLanguage != null && !requestedLanguage.trim().isEmpty())
 		{
 			String[] availableLanguages = new String[] { "EN", "DE", "FR", "IT" };
 			for (String availableLanguage : availableLanguages)
 			{
-				if (availableLanguage.equals(languageNode.asText()))
+				if (availableLanguage.equals(requestedLanguage))
 				{
 					language = Language.valueOf(availableLanguage);
 				}
@@ -445,93 +1642,69 @@ public class SwissQRBillGenerator
 		return language;
 	}
 	
-	private String checkCurrency(JsonNode currencyNode)
+	private String checkCurrency(String currency)
 	{
-		if (Objects.isNull(currencyNode) || (!currencyNode.asText().equals("CHF") && !currencyNode.asText().equals("EUR")))
+		if (Objects.isNull(currency) || (!currency.equals("CHF") && !currency.equals("EUR")))
 		{
 			return "CHF";
 		}
 		else
 		{
-			return currencyNode.asText();
+			return currency;
 		}
 	}
-	private OutputSize selectOutputSize(Path invoice, JsonNode sourceFormNode, ObjectNode targetFormNode) throws IllegalArgumentException
+	private OutputSize selectOutputSize(Path invoice, BillRequest request, ObjectNode targetFormNode)
 	{
 		OutputSize outputSize = null;
-		JsonNode size = sourceFormNode.get("output_size");
-		if (size == null || size.asText() == null || size.asText().trim().isEmpty())
+		if (RequestField.Check.NOT_BLANK.test(request.outputSize) && RequestField.OUTPUT_SIZE.isValid(request, false))
 		{
-			if (Objects.isNull(invoice))
-			{
-				outputSize = OutputSize.A4_PORTRAIT_SHEET;
-			}
-			else
-			{
-				outputSize = OutputSize.QR_BILL_EXTRA_SPACE;
-			}
+			outputSize = OutputSize.valueOf(request.outputSize.trim());
 		}
-		try
+		else if (Objects.isNull(invoice))
 		{
-			outputSize = OutputSize.valueOf(size.asText());
+			outputSize = OutputSize.A4_PORTRAIT_SHEET;
 		}
-		catch (IllegalArgumentException e)
+		else
 		{
-			throw new IllegalArgumentException(buildOutputSizeErrorMessage());
+			outputSize = OutputSize.QR_BILL_EXTRA_SPACE;
 		}
 		targetFormNode.put("output_size", outputSize.name());
 		return outputSize;
 	}
 
-	private GraphicsFormat selectGraphicsFormat(JsonNode sourceFormNode, ObjectNode targetFormNode) throws IllegalArgumentException
+	/*
+	 * The level of the request, else the one of the generator.
+	 */
+	private int selectCompressionLevel(BillRequest request, ObjectNode targetFormNode)
 	{
-		JsonNode graphicsFormat = sourceFormNode.get("graphics_format");
-		if (graphicsFormat == null || graphicsFormat.asText() == null || graphicsFormat.asText().trim().isEmpty())
+		if (RequestField.Check.NOT_BLANK.test(request.compressionLevel) && RequestField.COMPRESSION_LEVEL.isValid(request, false))
 		{
-			throw new IllegalArgumentException(buildGraphicsFormatErrorMessage());
+			int compressionLevel = Integer.parseInt(request.compressionLevel.trim());
+			targetFormNode.put("compression_level", compressionLevel);
+			return compressionLevel;
 		}
-		GraphicsFormat format = null;
-		try
-		{
-			format = GraphicsFormat.valueOf(graphicsFormat.asText());
-		}
-		catch (IllegalArgumentException e)
-		{
-			throw new IllegalArgumentException(buildGraphicsFormatErrorMessage());
-		}
-		if (format == null || format.getClass().isAnnotationPresent(Deprecated.class))
-		{
-			throw new IllegalArgumentException(buildGraphicsFormatErrorMessage());
-		}
-		targetFormNode.put("graphics_format", format.name());
-		return format;
-	}
-	
-	private String buildOutputSizeErrorMessage()
-	{
-		StringBuilder builder = new StringBuilder();
-		for (OutputSize size : OutputSize.values())
-		{
-			builder = builder.append(size.name() + ", ");
-		}
-		String values = builder.toString().trim();
-		values = values.substring(0, values.length() - 1);
-		return "'output_size' muss eines der folgenden Werte sein: " + values;
+		return this.pngCompressionLevel;
 	}
-	
-	private String buildGraphicsFormatErrorMessage()
+
+	/*
+	 * null if the graphics format is missing or invalid, which has been
+	 * reported by the validator.
+	 */
+	private GraphicsFormat selectGraphicsFormat(BillRequest request, ObjectNode targetFormNode)
 	{
-		StringBuilder builder = new StringBuilder();
-		for (GraphicsFormat format : GraphicsFormat.values())
+		if (!RequestField.GRAPHICS_FORMAT.isValid(request, false))
 		{
-			builder = builder.append(format.name() + ", ");
+			return null;
 		}
-		String values = builder.toString().trim();
-		values = values.substring(0, values.length() - 1);
-		return "'graphics_format' muss eines der folgenden Werte sein: " + values;
+		GraphicsFormat format = GraphicsFormat.valueOf(request.graphicsFormat.trim());
+		targetFormNode.put("graphics_format", format.name());
+		return format;
 	}
 	
-	private Path adaptFilePathname(String path, ObjectMapper mapper) throws Exception
+	/*
+	 * Without createDirectories (dry runs) the file system is not touched.
+	 */
+	private Path adaptFilePathname(String path, boolean createDirectories) throws Exception
 	{
 		if (System.getProperty("os.name").toLowerCase().indexOf("win") >= 0)
 		{
@@ -558,135 +1731,269 @@ public class SwissQRBillGenerator
 					correctedPath = Paths.get("/", correctedPath.subpath(1, correctedPath.getNameCount()).toString());
 				}
 			}
-			correctedPath.toFile().getParentFile().mkdirs();
+			if (createDirectories)
+			{
+				OutputDirectories.create(correctedPath.toFile().getParentFile());
+			}
 		}
 		return correctedPath;
 	}
 
-	private void addErrorNode(String key, String value)
+	/*
+	 * Reads a single bill request in one pass, without building a tree.
+	 */
+	private BillRequest readRequest(String json, GenerationContext context)
+	{
+		if (Objects.isNull(json))
+		{
+			context.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht gelesen werden. Handelt es sich um ein Json Objekt?");
+			return null;
+		}
+		try 
+		{
+			JsonParser parser = this.mapper.getFactory().createParser(json);
+			try
+			{
+				return this.readRequest(parser, context);
+			}
+			finally
+			{
+				parser.close();
+			}
+		} 
+		catch (JsonProcessingException e) 
+		{
+			context.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht verarbeitet werden (" + e.getLocalizedMessage() + "). Handelt es sich um ein Json Objekt?");
+		}
+		catch (IOException e) 
+		{
+			context.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht gelesen werden (" + e.getLocalizedMessage() + ").");
+		}
+		return null;
+	}
+	
+	/*
+	 * Requests already given as tree (batch items, the bills of a print run
+	 * and generate(JsonNode, OutputStream)) are read by traversing the tree.
+	 */
+	private BillRequest readRequest(JsonNode sourceNode, GenerationContext context)
+	{
+		try
+		{
+			return this.readRequest(this.mapper.treeAsTokens(sourceNode), context);
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private BillRequest readRequest(JsonParser parser, GenerationContext context) throws IOException
 	{
-		if (Objects.isNull(this.errorNode))
+		if (parser.nextToken() != JsonToken.START_OBJECT)
 		{
-			this.errorNode = this.targetNode.putArray("errors");
+			context.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht gelesen werden. Handelt es sich um ein Json Objekt?");
+			return null;
 		}
-		this.errorNode.add(mapper.createObjectNode().put(key, value));
+		BillRequest request = BillRequest.read(parser);
+		context.lap(Stage.PARSE);
+		return request;
 	}
 	
-	private JsonNode checkParameter(String json)
+	private JsonNode checkParameter(String json, GenerationContext context)
 	{
 		// convert JSON string to Map
 		JsonNode sourceNode = null;
 		try 
 		{
-			sourceNode = mapper.readTree(json);
+			sourceNode = this.mapper.readTree(json);
+			context.lap(Stage.PARSE);
 			if (sourceNode == null)
 			{
-				this.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht gelesen werden. Handelt es sich um ein Json Objekt?");
+				context.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht gelesen werden. Handelt es sich um ein Json Objekt?");
 			}
 		} 
 		catch (IllegalArgumentException e) 
 		{
-			this.addErrorNode("Parameter", "Der übergebene Parameter enthält ein ungültiges Element (" + e.getLocalizedMessage() + ").");
+			context.addErrorNode("Parameter", "Der übergebene Parameter enthält ein ungültiges Element (" + e.getLocalizedMessage() + ").");
 		} 
 		catch (JsonMappingException e) 
 		{
-			this.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht als JSON Object aufgebaut werden (" + e.getLocalizedMessage() + "). Handelt es sich um ein gültiges Json Objekt?");
+			context.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht als JSON Object aufgebaut werden (" + e.getLocalizedMessage() + "). Handelt es sich um ein gültiges Json Objekt?");
 		} 
 		catch (JsonProcessingException e) 
 		{
-			this.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht verarbeitet werden (" + e.getLocalizedMessage() + "). Handelt es sich um ein Json Objekt?");
+			context.addErrorNode("Parameter", "Der übergebene Parameter konnte nicht verarbeitet werden (" + e.getLocalizedMessage() + "). Handelt es sich um ein Json Objekt?");
 		}
 		return sourceNode;
 	}
 	
-//	private enum Parameter
-//	{
-//		AMOUNT("amount", false),
-//		CURRENCY("currency", true),
-//		IBAN("iban", true),
-//		REFERENCE("reference", true),
-//		PATH("path", true),
-//		FORM("form", false),
-//		CREDITOR("creditor", true),
-//		DEBTOR("debtor", false);
-//		
-//		private String key;
-//		
-//		private boolean mandatory;
-//		
-//		private Parameter(String key, boolean mandatory)
-//		{
-//			this.key = key;
-//			this.mandatory = mandatory;
-//		}
-//	}
-//	
-//	private enum Creditor
-//	{
-//		NAME("name", true), 
-//		ADDRESS("address", true), 
-//		CITY("city", true), 
-//		COUNTRY("country", true);
-//		
-//		private String key;
-//		
-//		private boolean mandatory;
-//		
-//		private Creditor(String key, boolean mandatory)
-//		{
-//			this.key = key;
-//			this.mandatory = mandatory;
-//		}
-//	}
-//
-//	private enum Debtor
-//	{
-//		NAME("name", true), 
-//		ADDRESS("address", true), 
-//		CITY("city", true), 
-//		COUNTRY("country", true);
-//		
-//		private String key;
-//		
-//		private boolean mandatory;
-//		
-//		private Debtor(String key, boolean mandatory)
-//		{
-//			this.key = key;
-//			this.mandatory = mandatory;
-//		}
-//	}
-//	
-//	private enum Form
-//	{
-//		GRAPHICS_FORMAT("form.graphics_format", false),
-//		OUTPUT_SIZE("form.output_size", false),
-//		LANGUAGE("form.language", false);
-//		
-//		private String key;
-//		
-//		private boolean mandatory;
-//		
-//		private Form(String key, boolean mandatory)
-//		{
-//			this.key = key;
-//			this.mandatory = mandatory;
-//		}
-//	}
-//
-//	private enum Path
-//	{
-//		OUTPUT("path.output", true), 
-//		INVOICE("path.invoice", false);
-//		
-//		private String key;
-//		
-//		private boolean mandatory;
-//		
-//		private Path(String key, boolean mandatory)
-//		{
-//			this.key = key;
-//			this.mandatory = mandatory;
-//		}
-//	}
-}
\ No newline at end of file
+	public static class Builder
+	{
+		private ObjectMapper mapper = new ObjectMapper();
+		
+		private ForkJoinPool pool = ForkJoinPool.commonPool();
+		
+		private int streamWindow = 0;
+		
+		private int drawingCacheSize = 0;
+		
+		private MemoryUsageSetting memoryUsage = MemoryUsageSetting.setupMixed(16L * 1024L * 1024L);
+		
+		private MetricsListener metricsListener = null;
+		
+		private Executor renderExecutor = null;
+		
+		private Executor ioExecutor = null;
+		
+		private int pngCompressionLevel = -1;
+		
+		private boolean compactPdf = false;
+		
+		private Path documentStore = null;
+		
+		private boolean linkFromDocumentStore = false;
+		
+		private Builder()
+		{
+		}
+		
+		public Builder mapper(ObjectMapper mapper)
+		{
+			this.mapper = Objects.requireNonNull(mapper);
+			return this;
+		}
+		
+		/*
+		 * The pool generateBatch spreads its items on, defaults to the common pool.
+		 */
+		public Builder forkJoinPool(ForkJoinPool pool)
+		{
+			this.pool = Objects.requireNonNull(pool);
+			return this;
+		}
+		
+		/*
+		 * The maximum number of requests generateStream keeps in flight,
+		 * defaults to twice the parallelism of the pool.
+		 */
+		public Builder streamWindow(int streamWindow)
+		{
+			if (streamWindow < 1)
+			{
+				throw new IllegalArgumentException("streamWindow must be at least 1");
+			}
+			this.streamWindow = streamWindow;
+			return this;
+		}
+		
+		/*
+		 * The memory budget for documents processed with PDFBox directly
+		 * (invoices read with append_mode FILE and print runs), data beyond
+		 * it is buffered in temporary files.
+		 */
+		public Builder memoryUsage(MemoryUsageSetting memoryUsage)
+		{
+			this.memoryUsage = Objects.requireNonNull(memoryUsage);
+			return this;
+		}
+		
+		/*
+		 * The number of bill drawings kept for reuse, keyed by the Swiss
+		 * Payments Code text and the format. Reruns of unchanged bills (e.g.
+		 * reminders) then skip the QR code encoding. Defaults to 0, which
+		 * disables the cache.
+		 */
+		public Builder drawingCacheSize(int drawingCacheSize)
+		{
+			if (drawingCacheSize < 0)
+			{
+				throw new IllegalArgumentException("drawingCacheSize must not be negative");
+			}
+			this.drawingCacheSize = drawingCacheSize;
+			return this;
+		}
+		
+		/*
+		 * Is called for each bill generated, e.g. JmxMetrics. There is no
+		 * listener by default.
+		 */
+		public Builder metricsListener(MetricsListener metricsListener)
+		{
+			this.metricsListener = Objects.requireNonNull(metricsListener);
+			return this;
+		}
+		
+		/*
+		 * The executor generateAsync parses, validates and renders on. It
+		 * should be bounded to about the number of processors, as this work
+		 * is cpu bound. Defaults to a pool of the generator with one thread
+		 * per processor.
+		 */
+		public Builder renderExecutor(Executor renderExecutor)
+		{
+			this.renderExecutor = Objects.requireNonNull(renderExecutor);
+			return this;
+		}
+		
+		/*
+		 * The executor generateAsync reads invoices and writes path.output
+		 * on, which blocks on the file system. Defaults to a pool of the
+		 * generator with one thread per processor, at least four.
+		 */
+		public Builder ioExecutor(Executor ioExecutor)
+		{
+			this.ioExecutor = Objects.requireNonNull(ioExecutor);
+			return this;
+		}
+		
+		/*
+		 * The deflate level (0 to 9) png bills are written with, unless the
+		 * request gives form.compression_level. Such bills are drawn into an
+		 * image kept per thread and encoded by the generator; level 6 gives
+		 * smaller files than the library in about half the time. Defaults
+		 * to -1, which writes png bills with the library.
+		 */
+		public Builder pngCompressionLevel(int pngCompressionLevel)
+		{
+			if (pngCompressionLevel < -1 || pngCompressionLevel > 9)
+			{
+				throw new IllegalArgumentException("pngCompressionLevel must be between -1 and 9");
+			}
+			this.pngCompressionLevel = pngCompressionLevel;
+			return this;
+		}
+		
+		/*
+		 * Whether pdf bills are written with object streams and deduplicated
+		 * resources (see CompactPDFWriter), unless the request gives
+		 * options.compact. Defaults to false.
+		 */
+		public Builder compactPdf(boolean compactPdf)
+		{
+			this.compactPdf = compactPdf;
+			return this;
+		}
+		
+		/*
+		 * A directory where every generated bill is stored under a hash of
+		 * its normalized request, so a repeated request is copied from there
+		 * instead of rendered again (see DocumentStore). With link, the
+		 * output is a hard link to the stored document where the file system
+		 * supports it, which must then not be changed in place. Bills
+		 * appended with INCREMENTAL and bills written to a stream are not
+		 * stored. Defaults to no store.
+		 */
+		public Builder documentStore(Path directory, boolean link)
+		{
+			this.documentStore = Objects.requireNonNull(directory);
+			this.linkFromDocumentStore = link;
+			return this;
+		}
+		
+		public SwissQRBillGenerator build()
+		{
+			return new SwissQRBillGenerator(this);
+		}
+	}
+}
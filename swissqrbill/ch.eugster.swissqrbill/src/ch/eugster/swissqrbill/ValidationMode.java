@@ -0,0 +1,18 @@
+package ch.eugster.swissqrbill;
+
+/*
+ * How the fields of a request are checked, see options.validation.
+ */
+enum ValidationMode
+{
+	/*
+	 * All fields are checked, each failing field adds its error.
+	 */
+	COLLECT_ALL,
+	/*
+	 * Checking stops at the first failing field, the request is not mapped
+	 * any further. For pre-checks of many requests, where only the
+	 * outcome matters.
+	 */
+	FAIL_FAST;
+}